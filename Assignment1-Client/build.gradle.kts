@@ -11,10 +11,33 @@ dependencies {
 
 }
 
+// The server is compiled into the client so the in-process transport can run both sides in one JVM.
+// Classes that are copied between the projects are only taken from the client.
+val clientSourceDir = file("src/main/java")
+val serverSourceDir = file("../Assignment1-Server/src/main/java")
+
+sourceSets {
+   main {
+      java {
+         srcDir(serverSourceDir)
+         exclude { element ->
+            !element.isDirectory && element.file.startsWith(serverSourceDir) &&
+               clientSourceDir.resolve(element.relativePath.pathString).exists()
+         }
+      }
+   }
+}
+
 application {
    mainClass = "edu.oswego.cs.PerformanceClient"
 }
 
+// Compares stored runs, e.g. gradle analyzeResults --args="compare results/<key>/<baseline> results/<key>/<candidate>"
+tasks.register<JavaExec>("analyzeResults") {
+   classpath = sourceSets["main"].runtimeClasspath
+   mainClass = "edu.oswego.cs.ResultsAnalyzer"
+}
+
 tasks.withType<Jar> {
     manifest {
         attributes["Main-Class"] = "edu.oswego.cs.PerformanceClient"
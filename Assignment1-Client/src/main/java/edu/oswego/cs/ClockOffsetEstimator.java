@@ -0,0 +1,199 @@
+package edu.oswego.cs;
+
+import java.io.FileWriter;
+import java.nio.ByteBuffer;
+
+/**
+ * Estimates the offset and drift between the System.nanoTime clocks of the client and the server from the timestamps
+ * the server echoes in its RTT replies, the same way NTP does. With the offset known each RTT can be split into the
+ * time the server spent on the message and the estimated one-way delays in each direction.
+ * <p>
+ * For every sample t1 is the client send time, t2 the server receive time, t3 the server send time and t4 the client
+ * receive time. The offset of a sample is ((t2 - t1) + (t3 - t4)) / 2 and its delay is (t4 - t1) - (t3 - t2). The
+ * offset of a test is taken from its sample with the smallest delay, which had the least queueing, and is only known to
+ * within half that delay since the split between the two directions cannot be observed.
+ * <p>
+ * A test lasts a few milliseconds, in which drift cannot be told apart from jitter, so drift is fitted over the best
+ * sample of every test of the run and only used once those span enough time. Until then the offset is assumed to be
+ * constant.
+ */
+public class ClockOffsetEstimator {
+
+   // The server receive and send timestamps appended to every RTT reply
+   public static final int TRAILER_BYTES = 2 * Long.BYTES;
+
+   // The best samples of the run need to span this long before drift is fitted
+   private static final long MIN_DRIFT_SPAN_NANOS = 10_000_000_000L;
+
+   private static final int MIN_DRIFT_POINTS = 3;
+
+   // One point per test, far more than a run has
+   private static final int MAX_DRIFT_POINTS = 256;
+
+   private final boolean enabled;
+
+   private final int capacity;
+
+   private final long[] clientSendTimes;
+
+   private final long[] serverReceiveTimes;
+
+   private final long[] serverSendTimes;
+
+   private final long[] clientReceiveTimes;
+
+   // Scratch space for the derived values so reporting does not allocate per test
+   private final long[] scratch;
+
+   private int numSamples;
+
+   // The client send time and offset of the sample with the smallest delay of every test so far
+   private final long[] driftTimes = new long[MAX_DRIFT_POINTS];
+
+   private final double[] driftOffsets = new double[MAX_DRIFT_POINTS];
+
+   private int numDriftPoints;
+
+   /**
+    * @param enabled Whether the server echoes timestamps.
+    * @param capacity The maximum number of samples recorded between resets.
+    */
+   public ClockOffsetEstimator(boolean enabled, int capacity) {
+      this.enabled = enabled;
+      this.capacity = enabled ? capacity : 0;
+      clientSendTimes = new long[this.capacity];
+      serverReceiveTimes = new long[this.capacity];
+      serverSendTimes = new long[this.capacity];
+      clientReceiveTimes = new long[this.capacity];
+      scratch = new long[this.capacity];
+   }
+
+   public boolean isEnabled() {
+      return enabled;
+   }
+
+   /**
+    * @return The number of bytes the server appends to each RTT reply.
+    */
+   public int trailerBytes() {
+      return enabled ? TRAILER_BYTES : 0;
+   }
+
+   /**
+    * Records the timestamps of one sample. The server timestamps are read from the trailer of the reply.
+    * @param clientSendTime The System.nanoTime value before the message was sent.
+    * @param reply The reply of the server.
+    * @param trailerIndex The index of the trailer within the reply.
+    * @param clientReceiveTime The System.nanoTime value after the reply was received.
+    */
+   public void record(long clientSendTime, ByteBuffer reply, int trailerIndex, long clientReceiveTime) {
+      if (!enabled || numSamples == capacity) return;
+      clientSendTimes[numSamples] = clientSendTime;
+      serverReceiveTimes[numSamples] = reply.getLong(trailerIndex);
+      serverSendTimes[numSamples] = reply.getLong(trailerIndex + Long.BYTES);
+      clientReceiveTimes[numSamples] = clientReceiveTime;
+      numSamples++;
+   }
+
+   /**
+    * Estimates the clock offset from the sample with the smallest delay, logs it together with the distributions of the
+    * server dwell time and the one-way delays and resets the estimator for the next test. The sample is kept for fitting
+    * the drift over the run.
+    * @param testName The name of the test the samples belong to.
+    * @param logFileWriter The file writer used to log the results.
+    */
+   public void reportAndReset(String testName, FileWriter logFileWriter) {
+      if (!enabled || numSamples == 0) return;
+
+      int best = 0;
+      for (int i = 1; i < numSamples; i++) {
+         if (delay(i) < delay(best)) best = i;
+      }
+      long bestTime = clientSendTimes[best];
+      double bestOffset = offset(best);
+      long uncertainty = Math.max(0, delay(best)) / 2;
+      if (numDriftPoints < MAX_DRIFT_POINTS) {
+         driftTimes[numDriftPoints] = bestTime;
+         driftOffsets[numDriftPoints] = bestOffset;
+         numDriftPoints++;
+      }
+
+      PerformanceClient.log("Clock estimate for " + testName + " over " + numSamples + " samples", logFileWriter);
+      long driftSpan = driftTimes[numDriftPoints - 1] - driftTimes[0];
+      double drift = 0;
+      if (numDriftPoints >= MIN_DRIFT_POINTS && driftSpan >= MIN_DRIFT_SPAN_NANOS) {
+         drift = fitDrift();
+         PerformanceClient.log(String.format("offset=%.0fns +-%dns drift=%.3fppm fitted over %d tests spanning %.1fs",
+               bestOffset, uncertainty, drift * 1e6, numDriftPoints, driftSpan / 1e9), logFileWriter);
+      } else {
+         PerformanceClient.log(String.format("offset=%.0fns +-%dns, drift not fitted since the tests so far span %.1fs of the"
+               + " %ds needed", bestOffset, uncertainty, driftSpan / 1e9, MIN_DRIFT_SPAN_NANOS / 1_000_000_000L), logFileWriter);
+      }
+
+      for (int i = 0; i < numSamples; i++) {
+         scratch[i] = delay(i);
+      }
+      PerformanceClient.log("network delay " + Distributions.summarize(scratch, 0, numSamples), logFileWriter);
+
+      for (int i = 0; i < numSamples; i++) {
+         scratch[i] = serverSendTimes[i] - serverReceiveTimes[i];
+      }
+      PerformanceClient.log("server dwell  " + Distributions.summarize(scratch, 0, numSamples), logFileWriter);
+
+      for (int i = 0; i < numSamples; i++) {
+         double offsetAtSend = bestOffset + drift * (clientSendTimes[i] - bestTime);
+         scratch[i] = Math.round((serverReceiveTimes[i] - clientSendTimes[i]) - offsetAtSend);
+      }
+      logOneWayDelays("forward path  ", uncertainty, logFileWriter);
+
+      for (int i = 0; i < numSamples; i++) {
+         double offsetAtReceive = bestOffset + drift * (clientReceiveTimes[i] - bestTime);
+         scratch[i] = Math.round((clientReceiveTimes[i] - serverSendTimes[i]) + offsetAtReceive);
+      }
+      logOneWayDelays("return path   ", uncertainty, logFileWriter);
+      numSamples = 0;
+   }
+
+   /**
+    * Logs the one-way delays in the scratch space and warns about the ones below zero, which only the error of the
+    * offset can cause.
+    */
+   private void logOneWayDelays(String label, long uncertainty, FileWriter logFileWriter) {
+      int numNegative = 0;
+      for (int i = 0; i < numSamples; i++) {
+         if (scratch[i] < 0) numNegative++;
+      }
+      PerformanceClient.log(label + Distributions.summarize(scratch, 0, numSamples), logFileWriter);
+      if (numNegative > 0) {
+         PerformanceClient.log("warning: " + numNegative + " of the " + label.trim() + " delays are below zero, they are"
+               + " only known to +-" + uncertainty + "ns", logFileWriter);
+      }
+   }
+
+   /**
+    * Least squares fit of offset = intercept + drift * t over the best samples of the tests so far.
+    * @return The drift in nanoseconds per nanosecond.
+    */
+   private double fitDrift() {
+      long origin = driftTimes[0];
+      double sumX = 0, sumY = 0, sumXX = 0, sumXY = 0;
+      for (int i = 0; i < numDriftPoints; i++) {
+         double x = driftTimes[i] - origin;
+         double y = driftOffsets[i];
+         sumX += x;
+         sumY += y;
+         sumXX += x * x;
+         sumXY += x * y;
+      }
+      double denominator = numDriftPoints * sumXX - sumX * sumX;
+      return denominator != 0 ? (numDriftPoints * sumXY - sumX * sumY) / denominator : 0;
+   }
+
+   private long delay(int sample) {
+      return (clientReceiveTimes[sample] - clientSendTimes[sample]) - (serverSendTimes[sample] - serverReceiveTimes[sample]);
+   }
+
+   private double offset(int sample) {
+      return ((serverReceiveTimes[sample] - clientSendTimes[sample]) + (serverSendTimes[sample] - clientReceiveTimes[sample])) / 2.0;
+   }
+}
@@ -0,0 +1,157 @@
+package edu.oswego.cs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Compresses throughput messages before they are encrypted and restores them after they were decrypted. Encrypted
+ * data looks random, so compressing has to happen first for it to have any effect.
+ * <p>
+ * A compressed message is sent as a long holding the compressed length followed by the encrypted compressed bytes,
+ * padded with zeros to a whole number of longs so the xor key can be applied to them. All buffers are sized for the
+ * largest compressed message up front and reused for every message.
+ */
+public class CompressionStage {
+
+   public static final int HEADER_BYTES = Long.BYTES;
+
+   private final PayloadCodec codec;
+
+   private final MessageCipher cipher;
+
+   private final int messageSize;
+
+   private final byte[] plain;
+
+   private final byte[] compressed;
+
+   private final ByteBuffer plainView;
+
+   private final ByteBuffer wireBuffer;
+
+   private long logicalBytes;
+
+   private long wireBytes;
+
+   /**
+    * @param codec The codec used to compress and decompress the messages.
+    * @param messageSize The size of an uncompressed message in bytes, a multiple of Long.BYTES.
+    * @param cipher The cipher used to encrypt and decrypt the compressed messages.
+    */
+   public CompressionStage(PayloadCodec codec, int messageSize, MessageCipher cipher) {
+      this.codec = codec;
+      this.cipher = cipher;
+      this.messageSize = messageSize;
+      plain = new byte[messageSize];
+      compressed = new byte[paddedLength(codec.maxCompressedLength(messageSize))];
+      plainView = ByteBuffer.wrap(plain);
+      wireBuffer = ByteBuffer.allocateDirect(HEADER_BYTES + compressed.length + cipher.overhead());
+   }
+
+   /**
+    * Compresses and encrypts one message.
+    * @param data The array holding the message as longs.
+    * @param startIndex The index of the first long of the message.
+    * @return The buffer holding the message as it is sent, ready to be passed to the transport.
+    * @throws IOException If the message could not be encrypted.
+    */
+   public ByteBuffer encode(long[] data, int startIndex) throws IOException {
+      // Absolute puts, a long view of the buffer would be allocated for every message
+      for (int i = 0; i < messageSize / Long.BYTES; i++) {
+         plainView.putLong(i * Long.BYTES, data[startIndex + i]);
+      }
+      int compressedLength = codec.compress(plain, 0, messageSize, compressed, 0);
+      int paddedLength = paddedLength(compressedLength);
+      // Both sides have to xor the same padding
+      Arrays.fill(compressed, compressedLength, paddedLength, (byte) 0);
+
+      wireBuffer.clear();
+      wireBuffer.putLong(compressedLength);
+      wireBuffer.put(compressed, 0, paddedLength);
+      wireBuffer.flip().position(HEADER_BYTES);
+      cipher.encrypt(wireBuffer);
+      wireBuffer.rewind();
+      logicalBytes += messageSize;
+      wireBytes += wireBuffer.limit();
+      return wireBuffer;
+   }
+
+   /**
+    * Receives one compressed message from a stream transport by reading the header before the payload.
+    * @param transport The stream transport connected to the client.
+    * @throws IOException If the message could not be received or the header is invalid.
+    */
+   public void receiveStream(Transport transport) throws IOException {
+      wireBuffer.clear().limit(HEADER_BYTES);
+      transport.receive(wireBuffer);
+      int paddedLength = paddedLength(readCompressedLength());
+      wireBuffer.limit(HEADER_BYTES + paddedLength + cipher.overhead());
+      transport.receive(wireBuffer);
+   }
+
+   /**
+    * Receives one compressed message from a datagram transport, the header and payload arrive in one datagram.
+    * @param transport The datagram transport.
+    * @return False if the test is over and no message was received.
+    * @throws IOException If the message could not be received.
+    */
+   public boolean receiveDatagram(Transport transport) throws IOException {
+      wireBuffer.clear();
+      return transport.receive(wireBuffer) >= 0;
+   }
+
+   /**
+    * Decrypts and decompresses the last received message.
+    * @param message The array the restored message is stored in.
+    * @throws IOException If the message is corrupt or failed authentication.
+    */
+   public void decode(long[] message) throws IOException {
+      int compressedLength = readCompressedLength();
+      int paddedLength = paddedLength(compressedLength);
+      wireBuffer.limit(HEADER_BYTES + paddedLength + cipher.overhead()).position(HEADER_BYTES);
+      cipher.decrypt(wireBuffer);
+      wireBuffer.get(compressed, 0, paddedLength);
+      codec.decompress(compressed, 0, compressedLength, plain, 0, messageSize);
+      for (int i = 0; i < messageSize / Long.BYTES; i++) {
+         message[i] = plainView.getLong(i * Long.BYTES);
+      }
+      logicalBytes += messageSize;
+      wireBytes += HEADER_BYTES + paddedLength + cipher.overhead();
+   }
+
+   public PayloadCodec getCodec() {
+      return codec;
+   }
+
+   /**
+    * @return The number of uncompressed bytes encoded or decoded since the counters were reset.
+    */
+   public long getLogicalBytes() {
+      return logicalBytes;
+   }
+
+   /**
+    * @return The number of bytes sent or received on the wire since the counters were reset.
+    */
+   public long getWireBytes() {
+      return wireBytes;
+   }
+
+   public void resetCounters() {
+      logicalBytes = 0;
+      wireBytes = 0;
+   }
+
+   private int readCompressedLength() throws IOException {
+      long compressedLength = wireBuffer.getLong(0);
+      if (compressedLength < 0 || paddedLength((int) Math.min(compressedLength, Integer.MAX_VALUE - Long.BYTES)) > compressed.length) {
+         throw new IOException("Invalid compressed message length: " + compressedLength);
+      }
+      return (int) compressedLength;
+   }
+
+   private static int paddedLength(int length) {
+      return (length + Long.BYTES - 1) / Long.BYTES * Long.BYTES;
+   }
+}
@@ -0,0 +1,270 @@
+package edu.oswego.cs;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * A transport over a UDP datagram channel. Messages are sent to the address of the last datagram that was received,
+ * so the server replies to whichever client messaged it last while the client keeps sending to the server.
+ * <p>
+ * Datagrams can be lost, reordered or duplicated, so every datagram starts with a sequence number. The client numbers
+ * its requests and the server answers with the number of the request it replies to. A receive on the client only
+ * accepts the reply to the last request and gives up with a SocketTimeoutException once the receive timeout passed.
+ * The server is told how many requests a test sends. It drops requests older than the newest one it accepted, counts
+ * the gaps as lost and returns -1 once the test is over, which is when a request of the next test arrives, the last
+ * request was accounted for or no request arrived within the receive timeout.
+ */
+public class DatagramTransport implements Transport {
+
+   public static final int HEADER_BYTES = Long.BYTES;
+
+   // The largest payload of a UDP datagram over IPv4
+   private static final int MAX_DATAGRAM_BYTES = 65507;
+
+   private final DatagramChannel datagramChannel;
+
+   private final boolean client;
+
+   // Holds a datagram with its header, payloads are copied between it and the buffers of the caller
+   private final ByteBuffer frameBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_BYTES);
+
+   private SocketAddress peerAddress;
+
+   // The sender of the datagram in the frame buffer
+   private SocketAddress frameAddress;
+
+   // The client numbers its requests from 1, the server sends the number of the request it replies to
+   private long sendSequence;
+
+   private long receiveSequence;
+
+   private Selector selector;
+
+   private long receiveTimeoutMillis;
+
+   // The server holds a datagram of the next test in the frame buffer until that test starts
+   private boolean pending;
+
+   // The sequence numbers of the current test on the server, the first one not accounted for yet and the end
+   private long testStart = 1;
+
+   private long nextExpected = 1;
+
+   private long testEnd = Long.MAX_VALUE;
+
+   private long numLost;
+
+   private long numDropped;
+
+   private boolean recordFirstByte;
+
+   private long firstByteNanoTime;
+
+   private DatagramTransport(DatagramChannel datagramChannel, SocketAddress peerAddress, boolean client) {
+      this.datagramChannel = datagramChannel;
+      this.peerAddress = peerAddress;
+      this.client = client;
+   }
+
+   /**
+    * Opens a datagram channel on an ephemeral port that sends to the specified host and port.
+    * @param host The host of the server.
+    * @param portNumber The port of the server.
+    * @return The created transport.
+    * @throws IOException If the datagram channel could not be opened.
+    */
+   public static DatagramTransport open(String host, int portNumber) throws IOException {
+      DatagramChannel datagramChannel = DatagramChannel.open();
+      datagramChannel.bind(null);
+      return new DatagramTransport(datagramChannel, new InetSocketAddress(host, portNumber), true);
+   }
+
+   /**
+    * Opens a datagram channel bound to the specified port. The peer is the sender of the first received datagram.
+    * @param portNumber The port to bind to.
+    * @return The created transport.
+    * @throws IOException If the datagram channel could not be opened or bound.
+    */
+   public static DatagramTransport bind(int portNumber) throws IOException {
+      DatagramChannel datagramChannel = DatagramChannel.open();
+      datagramChannel.bind(new InetSocketAddress(portNumber));
+      return new DatagramTransport(datagramChannel, null, false);
+   }
+
+   /**
+    * Limits how long a receive waits, on the client for the reply to a request and on the server for the next request.
+    * @param millis The timeout in milliseconds, 0 to wait forever.
+    * @throws IOException If the channel could not be switched to waiting with a timeout.
+    */
+   public void setReceiveTimeout(long millis) throws IOException {
+      receiveTimeoutMillis = millis;
+      if (millis > 0 && selector == null) {
+         selector = Selector.open();
+         datagramChannel.configureBlocking(false);
+         datagramChannel.register(selector, SelectionKey.OP_READ);
+      }
+   }
+
+   /**
+    * Starts a test on the server. The requests of the test are the next numRequests sequence numbers after the ones of
+    * the previous test.
+    * @param numRequests The number of requests the client sends in the test.
+    */
+   public void beginTest(long numRequests) {
+      testStart = testEnd == Long.MAX_VALUE ? nextExpected : testEnd;
+      nextExpected = Math.max(nextExpected, testStart);
+      testEnd = testStart + numRequests;
+   }
+
+   /**
+    * @return The sequence number the next request of the client is sent with.
+    */
+   public long nextSequence() {
+      return sendSequence + 1;
+   }
+
+   /**
+    * @return The sequence number of the last received datagram.
+    */
+   public long getSequence() {
+      return receiveSequence;
+   }
+
+   /**
+    * @return The index of the last received request within the current test on the server.
+    */
+   public long getTestPosition() {
+      return receiveSequence - testStart;
+   }
+
+   /**
+    * @return The number of requests the server never received, or of replies the client gave up waiting for.
+    */
+   public long getNumLost() {
+      return numLost;
+   }
+
+   /**
+    * @return The number of datagrams that were dropped because they were duplicates or arrived too late.
+    */
+   public long getNumDropped() {
+      return numDropped;
+   }
+
+   /**
+    * Counts a reply the client gave up waiting for.
+    */
+   public void countLost() {
+      numLost++;
+   }
+
+   public void resetLossCounters() {
+      numLost = 0;
+      numDropped = 0;
+   }
+
+   @Override
+   public void send(ByteBuffer buffer) throws IOException {
+      if (client) sendSequence++;
+      frameBuffer.clear();
+      frameBuffer.putLong(sendSequence).put(buffer).flip();
+      datagramChannel.send(frameBuffer, peerAddress);
+   }
+
+   @Override
+   public int receive(ByteBuffer buffer) throws IOException {
+      long deadline = System.nanoTime() + receiveTimeoutMillis * 1_000_000L;
+      while (true) {
+         if (!client && nextExpected >= testEnd) return -1;
+         if (!pending && !receiveFrame(deadline)) {
+            if (client) throw new SocketTimeoutException("No reply to request " + sendSequence + " within " + receiveTimeoutMillis + "ms");
+            // The client is done with the test, whatever did not arrive was lost
+            numLost += testEnd - nextExpected;
+            nextExpected = testEnd;
+            return -1;
+         }
+         pending = false;
+         long sequence = frameBuffer.getLong(0);
+         if (client) {
+            if (sequence != sendSequence) {
+               numDropped++;
+               continue;
+            }
+         } else {
+            if (sequence < nextExpected) {
+               numDropped++;
+               continue;
+            }
+            if (sequence >= testEnd) {
+               // Belongs to the next test, the rest of this one was lost
+               pending = true;
+               numLost += testEnd - nextExpected;
+               nextExpected = testEnd;
+               return -1;
+            }
+            numLost += sequence - nextExpected;
+            nextExpected = sequence + 1;
+            sendSequence = sequence;
+            peerAddress = frameAddress;
+         }
+         receiveSequence = sequence;
+         frameBuffer.position(HEADER_BYTES);
+         int numBytes = Math.min(frameBuffer.remaining(), buffer.remaining());
+         frameBuffer.limit(HEADER_BYTES + numBytes);
+         buffer.put(frameBuffer);
+         return numBytes;
+      }
+   }
+
+   @Override
+   public void setFirstByteTimestamps(boolean enabled) {
+      recordFirstByte = enabled;
+   }
+
+   @Override
+   public long getFirstByteNanoTime() {
+      return firstByteNanoTime;
+   }
+
+   @Override
+   public String getName() {
+      return "UDP";
+   }
+
+   @Override
+   public void close() throws IOException {
+      if (selector != null) selector.close();
+      datagramChannel.close();
+   }
+
+   /**
+    * Receives the next datagram that holds a header into the frame buffer.
+    * @param deadline The System.nanoTime value to give up at, ignored without a receive timeout.
+    * @return False if the deadline passed first.
+    */
+   private boolean receiveFrame(long deadline) throws IOException {
+      frameBuffer.clear();
+      if (receiveTimeoutMillis > 0) {
+         while ((frameAddress = datagramChannel.receive(frameBuffer)) == null) {
+            long remainingMillis = (deadline - System.nanoTime()) / 1_000_000L;
+            if (remainingMillis <= 0) return false;
+            selector.select(remainingMillis);
+            selector.selectedKeys().clear();
+         }
+      } else {
+         frameAddress = datagramChannel.receive(frameBuffer);
+      }
+      // A datagram arrives as a whole so the first byte arrives with the last one
+      if (recordFirstByte) firstByteNanoTime = System.nanoTime();
+      frameBuffer.flip();
+      if (frameBuffer.remaining() >= HEADER_BYTES) return true;
+      numDropped++;
+      return receiveFrame(deadline);
+   }
+}
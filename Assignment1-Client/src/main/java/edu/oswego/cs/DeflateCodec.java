@@ -0,0 +1,68 @@
+package edu.oswego.cs;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Compresses every message on its own with java.util.zip. The deflater and inflater are reset between messages
+ * instead of being recreated.
+ */
+public class DeflateCodec implements PayloadCodec {
+
+   private final int level;
+
+   private final Deflater deflater;
+
+   private final Inflater inflater;
+
+   public DeflateCodec(int level) {
+      this.level = level;
+      // nowrap skips the zlib header and Adler-32 checksum, per message overhead the benchmark does not need since the
+      // payloads are validated after decoding anyway
+      boolean nowrap = true;
+      deflater = new Deflater(level, nowrap);
+      inflater = new Inflater(nowrap);
+   }
+
+   @Override
+   public int compress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset) {
+      deflater.reset();
+      deflater.setInput(src, srcOffset, srcLength);
+      deflater.finish();
+      int compressedLength = 0;
+      while (!deflater.finished()) {
+         compressedLength += deflater.deflate(dst, dstOffset + compressedLength, dst.length - dstOffset - compressedLength);
+      }
+      return compressedLength;
+   }
+
+   @Override
+   public void decompress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset, int dstLength) throws ZipException {
+      inflater.reset();
+      inflater.setInput(src, srcOffset, srcLength);
+      try {
+         int restoredLength = 0;
+         while (restoredLength < dstLength && !inflater.finished()) {
+            int inflated = inflater.inflate(dst, dstOffset + restoredLength, dstLength - restoredLength);
+            if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+            restoredLength += inflated;
+         }
+         if (restoredLength != dstLength) throw new ZipException("Expected " + dstLength + " bytes but inflated " + restoredLength);
+      } catch (DataFormatException e) {
+         throw new ZipException("Corrupt deflate payload: " + e.getMessage());
+      }
+   }
+
+   @Override
+   public int maxCompressedLength(int srcLength) {
+      // Stored blocks add 5 bytes per 16 KB, the rest is headroom for the final block
+      return srcLength + 5 * (srcLength / 16383 + 1) + 64;
+   }
+
+   @Override
+   public String getName() {
+      return "deflate:" + level;
+   }
+}
@@ -0,0 +1,49 @@
+package edu.oswego.cs;
+
+import java.util.Arrays;
+
+/**
+ * Helpers for summarizing collected samples as distributions.
+ */
+public class Distributions {
+
+   private static final double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999};
+
+   private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p99.9"};
+
+   /**
+    * Sorts the values in the range in place and describes their distribution.
+    * @param values The array holding the values.
+    * @param from The index of the first value, inclusive.
+    * @param to The index of the last value, exclusive.
+    * @return The min, percentiles, max and mean of the values.
+    */
+   public static String summarize(long[] values, int from, int to) {
+      int numValues = to - from;
+      if (numValues <= 0) return "no samples";
+      Arrays.sort(values, from, to);
+      long total = 0;
+      for (int i = from; i < to; i++) {
+         total += values[i];
+      }
+      StringBuilder summary = new StringBuilder();
+      summary.append("min=").append(values[from]);
+      for (int i = 0; i < PERCENTILES.length; i++) {
+         summary.append(' ').append(PERCENTILE_NAMES[i]).append('=').append(values[percentileIndex(from, to, PERCENTILES[i])]);
+      }
+      summary.append(" max=").append(values[to - 1]);
+      summary.append(" mean=").append(total / numValues);
+      return summary.toString();
+   }
+
+   /**
+    * @param from The index of the first sorted value, inclusive.
+    * @param to The index of the last sorted value, exclusive.
+    * @param percentile The percentile between 0 and 1.
+    * @return The index of the value at the percentile using the nearest rank method.
+    */
+   public static int percentileIndex(int from, int to, double percentile) {
+      int rank = (int) Math.ceil(percentile * (to - from));
+      return from + Math.max(rank, 1) - 1;
+   }
+}
@@ -0,0 +1,136 @@
+package edu.oswego.cs;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A transport between two threads of the same JVM. Each direction is a single producer single consumer ring buffer
+ * and waiting is done by spinning, so no system calls are made while messages are exchanged. This makes it possible to
+ * measure the CPU cost of the tests without the kernel network stack.
+ */
+public class InProcessTransport implements Transport {
+
+   public static final String NAME = "INPROCESS";
+
+   private static final int RING_CAPACITY = 1 << 16;
+
+   // After this many empty spins the waiting thread yields, on a single core machine the peer can only run after a yield
+   private static final int SPINS_BEFORE_YIELD = Runtime.getRuntime().availableProcessors() > 1 ? 1 << 14 : 0;
+
+   private final Ring incoming;
+
+   private final Ring outgoing;
+
+   private boolean recordFirstByte;
+
+   private long firstByteNanoTime;
+
+   private InProcessTransport(Ring incoming, Ring outgoing) {
+      this.incoming = incoming;
+      this.outgoing = outgoing;
+   }
+
+   /**
+    * Creates two connected transports. Whatever is sent on one of them is received on the other.
+    * @return An array holding both ends of the pipe.
+    */
+   public static InProcessTransport[] openPair() {
+      Ring aToB = new Ring();
+      Ring bToA = new Ring();
+      return new InProcessTransport[] {new InProcessTransport(bToA, aToB), new InProcessTransport(aToB, bToA)};
+   }
+
+   @Override
+   public void send(ByteBuffer buffer) throws IOException {
+      outgoing.write(buffer);
+   }
+
+   @Override
+   public int receive(ByteBuffer buffer) throws IOException {
+      return incoming.read(buffer, this);
+   }
+
+   @Override
+   public void setFirstByteTimestamps(boolean enabled) {
+      recordFirstByte = enabled;
+   }
+
+   @Override
+   public long getFirstByteNanoTime() {
+      return firstByteNanoTime;
+   }
+
+   @Override
+   public String getName() {
+      return NAME;
+   }
+
+   @Override
+   public void close() {
+      outgoing.closed = true;
+      incoming.closed = true;
+   }
+
+   private static class Ring {
+
+      private final byte[] data = new byte[RING_CAPACITY];
+
+      // Only written by the producer
+      private volatile long writeIndex;
+
+      // Only written by the consumer
+      private volatile long readIndex;
+
+      private volatile boolean closed;
+
+      void write(ByteBuffer buffer) throws IOException {
+         int spins = 0;
+         while (buffer.hasRemaining()) {
+            if (closed) throw new EOFException("The in-process transport was closed");
+            long write = writeIndex;
+            int free = RING_CAPACITY - (int) (write - readIndex);
+            if (free == 0) {
+               spins = waitForPeer(spins);
+               continue;
+            }
+            int offset = (int) (write & (RING_CAPACITY - 1));
+            int length = Math.min(Math.min(free, buffer.remaining()), RING_CAPACITY - offset);
+            buffer.get(data, offset, length);
+            writeIndex = write + length;
+            spins = 0;
+         }
+      }
+
+      int read(ByteBuffer buffer, InProcessTransport transport) throws IOException {
+         int numBytes = 0;
+         int spins = 0;
+         while (buffer.hasRemaining()) {
+            long read = readIndex;
+            int available = (int) (writeIndex - read);
+            if (available == 0) {
+               if (closed && writeIndex == read) throw new EOFException("The in-process transport was closed");
+               spins = waitForPeer(spins);
+               continue;
+            }
+            int offset = (int) (read & (RING_CAPACITY - 1));
+            int length = Math.min(Math.min(available, buffer.remaining()), RING_CAPACITY - offset);
+            if (numBytes == 0 && transport.recordFirstByte) transport.firstByteNanoTime = System.nanoTime();
+            buffer.put(data, offset, length);
+            readIndex = read + length;
+            numBytes += length;
+            spins = 0;
+         }
+         return numBytes;
+      }
+
+      private static int waitForPeer(int spins) {
+         if (spins < SPINS_BEFORE_YIELD) {
+            Thread.onSpinWait();
+            return spins + 1;
+         }
+         Thread.yield();
+         return 0;
+      }
+   }
+}
@@ -0,0 +1,54 @@
+package edu.oswego.cs;
+
+/**
+ * Counts the receive and send calls made on a transport and the socket calls it took to serve them, so the cost of
+ * buffering and coalescing can be compared run to run. A message that is received in parts counts once per part.
+ */
+public class IoCounters {
+
+   private long numReceives;
+
+   private long numSends;
+
+   private long numReadCalls;
+
+   private long numWriteCalls;
+
+   public void countReceive() {
+      numReceives++;
+   }
+
+   public void countSend() {
+      numSends++;
+   }
+
+   public void countReadCall() {
+      numReadCalls++;
+   }
+
+   public void countWriteCall() {
+      numWriteCalls++;
+   }
+
+   public long getNumTransportCalls() {
+      return numReceives + numSends;
+   }
+
+   public long getNumSyscalls() {
+      return numReadCalls + numWriteCalls;
+   }
+
+   public void reset() {
+      numReceives = 0;
+      numSends = 0;
+      numReadCalls = 0;
+      numWriteCalls = 0;
+   }
+
+   @Override
+   public String toString() {
+      double syscallsPerCall = getNumTransportCalls() == 0 ? 0 : (double) getNumSyscalls() / getNumTransportCalls();
+      return numReceives + " receives took " + numReadCalls + " reads, " + numSends + " sends took " + numWriteCalls
+            + " writes, " + String.format("%.3f", syscallsPerCall) + " syscalls per receive or send";
+   }
+}
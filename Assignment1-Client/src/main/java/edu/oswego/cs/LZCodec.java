@@ -0,0 +1,156 @@
+package edu.oswego.cs;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A fast LZ77 codec in the style of LZ4. Trades compression ratio for speed by only looking up one earlier position
+ * per hash and never searching for a better match.
+ * <p>
+ * The compressed data is a list of sequences. Every sequence starts with a token whose high nibble is the number of
+ * literals and whose low nibble is the match length minus 4. A nibble of 15 is followed by bytes that are added to it
+ * until a byte smaller than 255. The literals follow, then the two byte little endian offset of the match and any
+ * extra match length bytes. The last sequence only has literals.
+ */
+public class LZCodec implements PayloadCodec {
+
+   private static final int MIN_MATCH = 4;
+
+   private static final int MAX_OFFSET = 0xFFFF;
+
+   private static final int HASH_BITS = 12;
+
+   private static final int RUN_MASK = 15;
+
+   // Positions are stored relative to a base that moves forward with every message, so entries left over from earlier
+   // messages are below the base and the table never has to be cleared
+   private final int[] hashTable = new int[1 << HASH_BITS];
+
+   private int base = 1;
+
+   @Override
+   public int compress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset) {
+      if (base > Integer.MAX_VALUE - srcLength - 1) {
+         Arrays.fill(hashTable, 0);
+         base = 1;
+      }
+      int srcEnd = srcOffset + srcLength;
+      int matchLimit = srcEnd - MIN_MATCH;
+      int in = srcOffset;
+      int anchor = srcOffset;
+      int out = dstOffset;
+      while (in <= matchLimit) {
+         int sequence = readInt(src, in);
+         int hash = (sequence * -1640531535) >>> (32 - HASH_BITS);
+         int reference = hashTable[hash] - base + srcOffset;
+         hashTable[hash] = base + in - srcOffset;
+         if (reference < srcOffset || in - reference > MAX_OFFSET || readInt(src, reference) != sequence) {
+            in++;
+            continue;
+         }
+         int matchLength = MIN_MATCH;
+         while (in + matchLength < srcEnd && src[reference + matchLength] == src[in + matchLength]) {
+            matchLength++;
+         }
+         out = writeSequence(src, anchor, in - anchor, dst, out, in - reference, matchLength);
+         in += matchLength;
+         anchor = in;
+      }
+      out = writeLiterals(src, anchor, srcEnd - anchor, dst, out);
+      base += srcLength + 1;
+      return out - dstOffset;
+   }
+
+   @Override
+   public void decompress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset, int dstLength) throws IOException {
+      int srcEnd = srcOffset + srcLength;
+      int dstEnd = dstOffset + dstLength;
+      int in = srcOffset;
+      int out = dstOffset;
+      try {
+         while (in < srcEnd) {
+            int token = src[in++] & 0xFF;
+            int literalLength = token >>> 4;
+            if (literalLength == RUN_MASK) {
+               int extra;
+               do {
+                  extra = src[in++] & 0xFF;
+                  literalLength += extra;
+               } while (extra == 255);
+            }
+            if (out + literalLength > dstEnd) throw new IOException("Corrupt LZ payload, literals overflow the message");
+            System.arraycopy(src, in, dst, out, literalLength);
+            in += literalLength;
+            out += literalLength;
+            if (in >= srcEnd) break;
+
+            int offset = (src[in] & 0xFF) | (src[in + 1] & 0xFF) << 8;
+            in += 2;
+            int matchLength = (token & RUN_MASK) + MIN_MATCH;
+            if ((token & RUN_MASK) == RUN_MASK) {
+               int extra;
+               do {
+                  extra = src[in++] & 0xFF;
+                  matchLength += extra;
+               } while (extra == 255);
+            }
+            int reference = out - offset;
+            if (offset == 0 || reference < dstOffset || out + matchLength > dstEnd) throw new IOException("Corrupt LZ payload, bad match");
+            // byte by byte since the match may overlap the bytes it produces
+            for (int i = 0; i < matchLength; i++) {
+               dst[out + i] = dst[reference + i];
+            }
+            out += matchLength;
+         }
+      } catch (ArrayIndexOutOfBoundsException e) {
+         throw new IOException("Corrupt LZ payload, truncated sequence");
+      }
+      if (out != dstEnd) throw new IOException("Expected " + dstLength + " bytes but restored " + (out - dstOffset));
+   }
+
+   @Override
+   public int maxCompressedLength(int srcLength) {
+      return srcLength + srcLength / 255 + 16;
+   }
+
+   @Override
+   public String getName() {
+      return "lz";
+   }
+
+   private static int writeSequence(byte[] src, int literalStart, int literalLength, byte[] dst, int out, int offset, int matchLength) {
+      int matchCode = matchLength - MIN_MATCH;
+      int tokenIndex = out++;
+      int token = Math.min(literalLength, RUN_MASK) << 4 | Math.min(matchCode, RUN_MASK);
+      dst[tokenIndex] = (byte) token;
+      out = writeLength(literalLength, dst, out);
+      System.arraycopy(src, literalStart, dst, out, literalLength);
+      out += literalLength;
+      dst[out++] = (byte) offset;
+      dst[out++] = (byte) (offset >>> 8);
+      return writeLength(matchCode, dst, out);
+   }
+
+   private static int writeLiterals(byte[] src, int literalStart, int literalLength, byte[] dst, int out) {
+      dst[out++] = (byte) (Math.min(literalLength, RUN_MASK) << 4);
+      out = writeLength(literalLength, dst, out);
+      System.arraycopy(src, literalStart, dst, out, literalLength);
+      return out + literalLength;
+   }
+
+   // Writes the part of a length that did not fit into its nibble
+   private static int writeLength(int length, byte[] dst, int out) {
+      if (length < RUN_MASK) return out;
+      int remaining = length - RUN_MASK;
+      while (remaining >= 255) {
+         dst[out++] = (byte) 255;
+         remaining -= 255;
+      }
+      dst[out++] = (byte) remaining;
+      return out;
+   }
+
+   private static int readInt(byte[] bytes, int index) {
+      return (bytes[index] & 0xFF) | (bytes[index + 1] & 0xFF) << 8 | (bytes[index + 2] & 0xFF) << 16 | (bytes[index + 3] & 0xFF) << 24;
+   }
+}
@@ -0,0 +1,91 @@
+package edu.oswego.cs;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * Records the latency of every request of a workload run together with its size and reports them per size bucket. The
+ * run pipelines its requests, so a small request can queue behind a large response, and comparing the bucket of the
+ * small requests with a run of only small requests shows how much the large ones inflate its tail. The buckets are
+ * powers of two of the request size. Samples are stored into arrays that are allocated up front, the csv
+ * rows and summaries are only built once the run is over.
+ */
+public class LatencyBuckets {
+
+   // Buckets up to requests of 2^31 bytes
+   private static final int NUM_BUCKETS = Integer.SIZE;
+
+   private final int capacity;
+
+   private final long[] latencies;
+
+   private final int[] requestSizes;
+
+   private final boolean[] valid;
+
+   // Scratch space for sorting the latencies of one bucket
+   private final long[] scratch;
+
+   private int numSamples;
+
+   /**
+    * @param capacity The maximum number of samples recorded between resets.
+    */
+   public LatencyBuckets(int capacity) {
+      this.capacity = capacity;
+      latencies = new long[capacity];
+      requestSizes = new int[capacity];
+      valid = new boolean[capacity];
+      scratch = new long[capacity];
+   }
+
+   /**
+    * Records one request. Samples beyond the capacity are dropped.
+    * @param requestBytes The size of the request.
+    * @param latency The time from sending the request to validating the response in nanoseconds.
+    * @param validated Whether the response held the expected data.
+    */
+   public void record(int requestBytes, long latency, boolean validated) {
+      if (numSamples == capacity) return;
+      latencies[numSamples] = latency;
+      requestSizes[numSamples] = requestBytes;
+      valid[numSamples] = validated;
+      numSamples++;
+   }
+
+   /**
+    * Writes every sample to the csv file with its bucket as the test, logs the latency distribution of every bucket
+    * and of the whole run, then resets the buckets.
+    * @param testName The name of the run.
+    * @param csvWriter The csv file the samples are written to.
+    * @param logFileWriter The file writer used to log the summaries.
+    * @throws IOException If the csv file could not be written.
+    */
+   public void reportAndReset(String testName, BufferedWriter csvWriter, FileWriter logFileWriter) throws IOException {
+      for (int i = 0; i < numSamples; i++) {
+         csvWriter.write("" + (i + 1) + "," + latencies[i] + "," + valid[i] + "," + bucketName(bucketOf(requestSizes[i])) + "\n");
+      }
+      for (int bucket = 0; bucket < NUM_BUCKETS; bucket++) {
+         int numInBucket = 0;
+         for (int i = 0; i < numSamples; i++) {
+            if (bucketOf(requestSizes[i]) == bucket) scratch[numInBucket++] = latencies[i];
+         }
+         if (numInBucket == 0) continue;
+         PerformanceClient.log(testName + " requests of " + bucketName(bucket) + ": " + numInBucket + " samples, latency "
+               + Distributions.summarize(scratch, 0, numInBucket), logFileWriter);
+      }
+      System.arraycopy(latencies, 0, scratch, 0, numSamples);
+      PerformanceClient.log(testName + " all requests: " + numSamples + " samples, latency "
+            + Distributions.summarize(scratch, 0, numSamples), logFileWriter);
+      numSamples = 0;
+   }
+
+   private static int bucketOf(int requestBytes) {
+      return Integer.SIZE - 1 - Integer.numberOfLeadingZeros(requestBytes);
+   }
+
+   private static String bucketName(int bucket) {
+      return (1L << bucket) + "-" + ((1L << (bucket + 1)) - 1) + "B";
+   }
+}
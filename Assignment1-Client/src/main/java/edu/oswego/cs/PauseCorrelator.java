@@ -0,0 +1,93 @@
+package edu.oswego.cs;
+
+import java.io.FileWriter;
+
+/**
+ * Matches the slowest samples of a test with the JVM pauses recorded by a PauseMonitor. A sample is an outlier when it
+ * took longer than the third quartile plus three times the interquartile range of its test.
+ */
+public class PauseCorrelator {
+
+   private static final int MAX_LOGGED_OUTLIERS = 10;
+
+   private final PauseMonitor pauseMonitor;
+
+   private final int capacity;
+
+   private final long[] starts;
+
+   private final long[] ends;
+
+   // Scratch space for sorting the durations so reporting does not allocate per test
+   private final long[] scratch;
+
+   private int numSamples;
+
+   /**
+    * @param pauseMonitor The monitor recording the pauses, nothing is recorded if it is disabled.
+    * @param capacity The maximum number of samples recorded between resets.
+    */
+   public PauseCorrelator(PauseMonitor pauseMonitor, int capacity) {
+      this.pauseMonitor = pauseMonitor;
+      this.capacity = pauseMonitor.isEnabled() ? capacity : 0;
+      starts = new long[this.capacity];
+      ends = new long[this.capacity];
+      scratch = new long[this.capacity];
+   }
+
+   public boolean isEnabled() {
+      return pauseMonitor.isEnabled();
+   }
+
+   /**
+    * Records the window of one sample.
+    * @param start The System.nanoTime value the sample started at.
+    * @param end The System.nanoTime value the sample ended at.
+    */
+   public void record(long start, long end) {
+      if (numSamples == capacity) return;
+      starts[numSamples] = start;
+      ends[numSamples] = end;
+      numSamples++;
+   }
+
+   /**
+    * Logs the pauses during the test and the outliers among its samples together with the pauses they overlap, then
+    * resets the correlator for the next test.
+    * @param testName The name of the test the samples belong to.
+    * @param logFileWriter The file writer used to log the results.
+    */
+   public void reportAndReset(String testName, FileWriter logFileWriter) {
+      if (numSamples == 0) return;
+      long testStart = starts[0];
+      long testEnd = ends[numSamples - 1];
+      pauseMonitor.awaitEvents(testEnd);
+
+      for (int i = 0; i < numSamples; i++) {
+         scratch[i] = ends[i] - starts[i];
+      }
+      String durationSummary = Distributions.summarize(scratch, 0, numSamples);
+      long firstQuartile = scratch[Distributions.percentileIndex(0, numSamples, 0.25)];
+      long thirdQuartile = scratch[Distributions.percentileIndex(0, numSamples, 0.75)];
+      long outlierThreshold = thirdQuartile + 3 * (thirdQuartile - firstQuartile);
+
+      PerformanceClient.log("Pauses during " + testName + ": " + pauseMonitor.describeWindow(testStart, testEnd), logFileWriter);
+      PerformanceClient.log("sample duration " + durationSummary, logFileWriter);
+      int numOutliers = 0;
+      int numOverlapping = 0;
+      for (int i = 0; i < numSamples; i++) {
+         long duration = ends[i] - starts[i];
+         if (duration <= outlierThreshold) continue;
+         numOutliers++;
+         String pauses = pauseMonitor.describeOverlap(starts[i], ends[i]);
+         if (pauses != null) numOverlapping++;
+         if (numOutliers <= MAX_LOGGED_OUTLIERS) {
+            PerformanceClient.log("outlier sample " + (i + 1) + " took " + duration + "ns, "
+                  + (pauses == null ? "no pause" : "overlaps " + pauses), logFileWriter);
+         }
+      }
+      PerformanceClient.log(numOutliers + " outliers above " + outlierThreshold + "ns, " + numOverlapping
+            + " of them overlap a pause", logFileWriter);
+      numSamples = 0;
+   }
+}
@@ -5,16 +5,20 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
-import java.nio.channels.DatagramChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
 import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
 
 public class PerformanceClient {
+
+   // Waits shorter than this are spun since parking overshoots by tens of microseconds
+   private static final long SPIN_WAIT_NANOS = 100_000L;
    
    public static void main(String[] args) {
       String host;
@@ -40,86 +44,244 @@ public class PerformanceClient {
          sampleSize = 30;
       }
 
-      Socket socket = null;
-      DataOutputStream out = null;
-      DataInputStream in = null;
+      String transportType;
+      if (args.length > 3) {
+         transportType = args[3].toLowerCase();
+      } else {
+         // TCP tests followed by UDP tests
+         transportType = "ip";
+      }
+
+      // Stage timing is optional since it adds System.nanoTime calls to every RTT sample
+      boolean stageTiming = Boolean.getBoolean("stageTiming");
+      StageTimer stageTimer = new StageTimer(stageTiming, sampleSize);
+      SessionOptions sessionOptions = SessionOptions.fromSystemProperties();
+      ClockOffsetEstimator clockEstimator = new ClockOffsetEstimator(sessionOptions.isTimestampEcho(), sampleSize);
+      // Pause monitoring subscribes to GC notifications and starts a JFR stream, so it is optional as well
+      PauseMonitor pauseMonitor = PauseMonitor.start(Boolean.getBoolean("pauseMonitor"));
+      PauseCorrelator pauseCorrelator = new PauseCorrelator(pauseMonitor, sampleSize);
+      Workload workload = loadWorkload(System.getProperty("workload"));
+
+      Properties runMetadata = ResultsStore.describeRun(host, transportType, sampleSize, sessionOptions, stageTiming);
+      runMetadata.setProperty("pauseMonitor", Boolean.toString(pauseMonitor.isEnabled()));
+      if (workload != null) runMetadata.setProperty("workload", workload.toString());
+      List<String> csvFileNames = new ArrayList<>();
+
+      String logFilePath = "log.txt";
+      FileWriter logFileWriter = createLogFileWriter(logFilePath);
+      switch (transportType) {
+         case "unix":
+            Transport unixTransport = null;
+            try {
+               unixTransport = StreamTransport.connectUnix(portNumber);
+            } catch (IOException e) {
+               System.err.println("Could not connect to the unix domain socket for port: " + portNumber);
+               e.printStackTrace();
+               System.exit(1);
+            }
+            runStreamTests(unixTransport, logFileWriter, sampleSize, sessionOptions, stageTimer, clockEstimator, pauseCorrelator, workload);
+            addCSVFileNames(csvFileNames, unixTransport.getName(), workload != null);
+            closeTransport(unixTransport);
+            break;
+         case "inprocess":
+            runInProcessTests(logFileWriter, sampleSize, sessionOptions, stageTimer, clockEstimator, pauseCorrelator, workload);
+            addCSVFileNames(csvFileNames, InProcessTransport.NAME, workload != null);
+            break;
+         default:
+            Transport tcpTransport = null;
+            try {
+               tcpTransport = StreamTransport.connectTCP(host, portNumber);
+            } catch (UnknownHostException e) {
+               System.err.println("Could not find host: " + host);
+               e.printStackTrace();
+               System.exit(1);
+            } catch (IOException e) {
+               System.err.println("Could not achieve Input or Output access with the connection");
+               e.printStackTrace();
+               System.exit(1);
+            }
+            MessageCipher cipher = runStreamTests(tcpTransport, logFileWriter, sampleSize, sessionOptions, stageTimer, clockEstimator, pauseCorrelator, workload);
+            addCSVFileNames(csvFileNames, tcpTransport.getName(), workload != null);
+            closeTransport(tcpTransport);
+
+            DatagramTransport udpTransport = null;
+            try {
+               udpTransport = DatagramTransport.open(host, portNumber);
+               // Replies that take longer count as lost, the server has to wait longer than this before ending a test
+               udpTransport.setReceiveTimeout(Long.parseLong(System.getProperty("udpTimeout", "250")));
+            } catch (IOException e) {
+               System.err.println("There was an I/O Exception thrown when opening the DatagramChannel.");
+               e.printStackTrace();
+               System.exit(1);
+            }
+            runDatagramTests(udpTransport, logFileWriter, cipher, sampleSize, sessionOptions.createCodec(), stageTimer, clockEstimator, pauseCorrelator);
+            addCSVFileNames(csvFileNames, udpTransport.getName(), false);
+            closeTransport(udpTransport);
+      }
+
+      pauseMonitor.close();
+
+      // Keeps a copy of the csv files so runs can be compared with the ResultsAnalyzer, an empty directory disables it
+      String resultsDir = System.getProperty("resultsDir", "results");
+      if (!resultsDir.isEmpty()) {
+         try {
+            Path runDir = ResultsStore.storeRun(Path.of(resultsDir), runMetadata, csvFileNames);
+            log("Stored the results of this run in " + runDir, logFileWriter);
+         } catch (IOException e) {
+            System.err.println("There was an I/O Exception thrown when storing the results in " + resultsDir);
+            e.printStackTrace();
+         }
+      }
 
       try {
-         socket = new Socket(host, portNumber);
-         // Set print writer to autoflush
-         out = new DataOutputStream(socket.getOutputStream());
-         in = new DataInputStream(socket.getInputStream());
-      } catch (UnknownHostException e) {
-         System.err.println("Could not find host: " + host);
-         e.printStackTrace();
-         System.exit(1);
+         logFileWriter.close();
       } catch (IOException e) {
-         System.err.println("Could not achieve Input or Output access with the connection");
+         System.err.println("There was an I/O Exception thrown when closing the log file");
          e.printStackTrace();
          System.exit(1);
       }
+   }
 
-      String logFilePath = "log.txt";
-      FileWriter logFileWriter = createLogFileWriter(logFilePath);
-      XorKey xorKey = generateXorKey(out, in);
-      String tcpMessageTypeName = "TCP";
-      String rttTestName = "RTT";
-      BufferedWriter tcpRTTCSVWriter = setupCSVWriter(rttTestName, tcpMessageTypeName);
-      measureRTTWithTCPMessages(logFileWriter, out, in, xorKey, sampleSize, tcpRTTCSVWriter);
-      closeCSVWRITER(tcpRTTCSVWriter);
-      String throughputTestName = "Throughput";
-      BufferedWriter tcpThroughputWriter = setupCSVWriter(throughputTestName, tcpMessageTypeName);
-      measureThroughputForTCPTests(out, in, logFileWriter, xorKey, sampleSize, tcpThroughputWriter);
-      closeCSVWRITER(tcpThroughputWriter);
-      closeTCPIOs(socket, out, in);
-
-      DatagramChannel datagramChannel = null;
-      InetSocketAddress address = new InetSocketAddress(host, portNumber);
+   /**
+    * Reads the workload selected with -Dworkload.
+    * @param workloadPath The path of the workload file, null if no workload was selected.
+    * @return The workload or null if none was selected.
+    */
+   public static Workload loadWorkload(String workloadPath) {
+      if (workloadPath == null) return null;
+      Workload workload = null;
       try {
-        datagramChannel = DatagramChannel.open();
-        datagramChannel.bind(null);
+         workload = Workload.load(Path.of(workloadPath));
       } catch (IOException e) {
-         System.err.println("There was an I/O Exception thrown when opening the DatagramChannel.");
+         System.err.println("There was an I/O Exception thrown when reading the workload " + workloadPath);
          e.printStackTrace();
          System.exit(1);
       }
+      return workload;
+   }
+
+   /**
+    * Generates the xor key and sends the session options over a stream transport, then runs the RTT and throughput tests
+    * that were written for TCP over it, followed by the workload if one was selected.
+    * @param transport The stream transport connected to the server.
+    * @param logFileWriter The file writer used for logging test information.
+    * @param sampleSize The sample size to be used for each test.
+    * @param sessionOptions The options the server is asked to use.
+    * @param stageTimer The timer that records the stages of each RTT sample.
+    * @param clockEstimator The estimator fed with the timestamps the server echoes in RTT replies.
+    * @param pauseCorrelator The correlator the windows of the samples are recorded in.
+    * @param workload The workload to run after the throughput tests, null for none.
+    * @return The cipher of the session for future use.
+    */
+   public static MessageCipher runStreamTests(Transport transport, FileWriter logFileWriter, int sampleSize, SessionOptions sessionOptions, StageTimer stageTimer, ClockOffsetEstimator clockEstimator, PauseCorrelator pauseCorrelator, Workload workload) {
+      transport.setFirstByteTimestamps(stageTimer.isEnabled());
+      XorKey xorKey = generateXorKey(transport);
+      sendSessionOptions(transport, sessionOptions);
+      MessageCipher cipher = sessionOptions.createCipher(xorKey, true);
+      log("Encrypting messages with " + cipher.getName(), logFileWriter);
+      String rttTestName = "RTT";
+      BufferedWriter rttCSVWriter = setupCSVWriter(rttTestName, transport.getName());
+      measureRTTWithTCPMessages(logFileWriter, transport, cipher, sampleSize, rttCSVWriter, stageTimer, clockEstimator, pauseCorrelator);
+      closeCSVWRITER(rttCSVWriter);
+      String throughputTestName = "Throughput";
+      BufferedWriter throughputCSVWriter = setupCSVWriter(throughputTestName, transport.getName());
+      measureThroughputForTCPTests(transport, logFileWriter, cipher, sampleSize, throughputCSVWriter, sessionOptions.createCodec(), pauseCorrelator);
+      closeCSVWRITER(throughputCSVWriter);
+      if (workload != null) {
+         String workloadTestName = "Workload";
+         BufferedWriter workloadCSVWriter = setupCSVWriter(workloadTestName, transport.getName());
+         measureWorkload(workload, transport, logFileWriter, cipher, workloadCSVWriter);
+         closeCSVWRITER(workloadCSVWriter);
+      }
+      return cipher;
+   }
 
-      String udpMessageTypeName = "UDP";
-      BufferedWriter udpRTTWriter = setupCSVWriter(rttTestName, udpMessageTypeName);
-      measureRTTWithUDPTests(datagramChannel, address, logFileWriter, xorKey, sampleSize, udpRTTWriter);
-      closeCSVWRITER(udpRTTWriter);
-      BufferedWriter udpThroughputWriter = setupCSVWriter(throughputTestName, udpMessageTypeName);
-      measureThroughputForUDPTests(datagramChannel, address, logFileWriter, xorKey, sampleSize, udpThroughputWriter);
-      closeCSVWRITER(udpThroughputWriter);
+   /**
+    * Runs the RTT and throughput tests that were written for UDP over a datagram transport.
+    * @param transport The datagram transport that sends to the server.
+    * @param logFileWriter The file writer used for logging test information.
+    * @param cipher The cipher of the session created during the stream tests.
+    * @param sampleSize The sample size to be used for each test.
+    * @param codec The codec throughput messages are compressed with, null if they are not compressed.
+    * @param stageTimer The timer that records the stages of each RTT sample.
+    * @param clockEstimator The estimator fed with the timestamps the server echoes in RTT replies.
+    * @param pauseCorrelator The correlator the windows of the samples are recorded in.
+    */
+   public static void runDatagramTests(DatagramTransport transport, FileWriter logFileWriter, MessageCipher cipher, int sampleSize, PayloadCodec codec, StageTimer stageTimer, ClockOffsetEstimator clockEstimator, PauseCorrelator pauseCorrelator) {
+      transport.setFirstByteTimestamps(stageTimer.isEnabled());
+      String rttTestName = "RTT";
+      BufferedWriter rttCSVWriter = setupCSVWriter(rttTestName, transport.getName());
+      measureRTTWithUDPTests(transport, logFileWriter, cipher, sampleSize, rttCSVWriter, stageTimer, clockEstimator, pauseCorrelator);
+      closeCSVWRITER(rttCSVWriter);
+      String throughputTestName = "Throughput";
+      BufferedWriter throughputCSVWriter = setupCSVWriter(throughputTestName, transport.getName());
+      measureThroughputForUDPTests(transport, logFileWriter, cipher, sampleSize, throughputCSVWriter, codec, pauseCorrelator);
+      closeCSVWRITER(throughputCSVWriter);
+   }
 
+   /**
+    * Runs the server handlers on a separate thread of this JVM and the stream tests against it over an in-process pipe.
+    * No system calls are made during the tests, so the results only contain the CPU cost of the client and server.
+    * @param logFileWriter The file writer used for logging test information.
+    * @param sampleSize The sample size to be used for each test.
+    * @param sessionOptions The options the server is asked to use.
+    * @param stageTimer The timer that records the stages of each RTT sample.
+    * @param clockEstimator The estimator fed with the timestamps the server echoes in RTT replies.
+    * @param pauseCorrelator The correlator the windows of the samples are recorded in.
+    * @param workload The workload to run after the throughput tests, null for none.
+    */
+   public static void runInProcessTests(FileWriter logFileWriter, int sampleSize, SessionOptions sessionOptions, StageTimer stageTimer, ClockOffsetEstimator clockEstimator, PauseCorrelator pauseCorrelator, Workload workload) {
+      InProcessTransport[] pipe = InProcessTransport.openPair();
+      Thread serverThread = new Thread(() -> Server.serveStreamClient(pipe[1], sampleSize), "in-process-server");
+      serverThread.start();
+      runStreamTests(pipe[0], logFileWriter, sampleSize, sessionOptions, stageTimer, clockEstimator, pauseCorrelator, workload);
       try {
-         datagramChannel.close();
-         logFileWriter.close();
-      } catch (IOException e) {
-         System.err.println("There was an I/O Exception thrown when resources after UDP tests");
+         serverThread.join();
+      } catch (InterruptedException e) {
+         System.err.println("Interrupted while waiting for the in-process server to finish");
          e.printStackTrace();
          System.exit(1);
       }
+      closeTransport(pipe[0]);
+      closeTransport(pipe[1]);
+   }
+
+   /**
+    * Adds the names of the csv files the RTT, throughput and workload tests over a transport write to. The workload
+    * file is only added when a workload ran, so one left over from an earlier run is not stored with this one.
+    * @param csvFileNames The list the names are added to.
+    * @param transportName The name of the transport the tests ran over.
+    * @param ranWorkload Whether a workload ran over the transport.
+    */
+   public static void addCSVFileNames(List<String> csvFileNames, String transportName, boolean ranWorkload) {
+      csvFileNames.add(transportName + "RTT.csv");
+      csvFileNames.add(transportName + "Throughput.csv");
+      if (ranWorkload) csvFileNames.add(transportName + "Workload.csv");
    }
 
    /**
     * Generates the intial xorKey by first generating a seed, then sending the seed to the other device.
     * The seed is then used to generate the key.
-    * @param out The data output stream of the server that the client is connected to.
-    * @param in The data input stream of the server that the client is connected to.
+    * @param transport The transport connected to the server.
     * @return The generated xorKey.
     */
-   public static XorKey generateXorKey(DataOutputStream out, DataInputStream in) {
+   public static XorKey generateXorKey(Transport transport) {
       Random random = new Random();
+      ByteBuffer handshakeBuffer = ByteBuffer.allocate(Long.BYTES);
       try {
          long seed = random.nextLong();
-         out.writeLong(seed);
-         out.flush();
-         long responseSeed = in.readLong();
+         handshakeBuffer.putLong(seed).flip();
+         transport.send(handshakeBuffer);
+         handshakeBuffer.clear();
+         transport.receive(handshakeBuffer);
+         long responseSeed = handshakeBuffer.getLong(0);
          int numOfIterationsBeforeKey = 5;
-         out.writeInt(numOfIterationsBeforeKey);
-         out.flush();
-         int iterationValidation = in.readInt();
+         handshakeBuffer.clear();
+         handshakeBuffer.putInt(numOfIterationsBeforeKey).flip();
+         transport.send(handshakeBuffer);
+         handshakeBuffer.clear().limit(Integer.BYTES);
+         transport.receive(handshakeBuffer);
+         int iterationValidation = handshakeBuffer.getInt(0);
          boolean isSeedValid = seed == responseSeed;
          boolean isIterationValid = numOfIterationsBeforeKey == iterationValidation;
          boolean isKeyValid = isSeedValid & isIterationValid;
@@ -138,25 +300,43 @@ public class PerformanceClient {
       return xorKey;
    }
 
+   /**
+    * Sends the session options to the server and checks that they were echoed back unchanged.
+    * @param transport The transport connected to the server.
+    * @param sessionOptions The options the server is asked to use.
+    */
+   public static void sendSessionOptions(Transport transport, SessionOptions sessionOptions) {
+      try {
+         boolean isOptionsValid = sessionOptions.send(transport);
+         System.out.println("Session options (" + sessionOptions + ") are valid: " + isOptionsValid);
+      } catch (IOException e) {
+         System.err.println("I/O error while sending the session options");
+         e.printStackTrace();
+         System.exit(1);
+      }
+   }
+
    /**
     * This method encapsulets all of the RTT TCP tests required for the project including message sizes of 8, 64, and 512 bytes.
     * @param logFileWriter The file writer that is used for logging application information.
-    * @param out The output data stream of the server the client is connected to.
-    * @param in The input data stream of the server the client is connected to.
-    * @param xorKey The xor key used to encrypt and decrypt the data.
+    * @param transport The transport connected to the server.
+    * @param cipher The cipher used to encrypt and decrypt the data.
     * @param sampleSize The sample size to be used for each test.
+    * @param stageTimer The timer that records the stages of each sample.
+    * @param clockEstimator The estimator fed with the timestamps the server echoes.
+    * @param pauseCorrelator The correlator the windows of the samples are recorded in.
     * @return
     */
-   public static void measureRTTWithTCPMessages(FileWriter logFileWriter, DataOutputStream out, DataInputStream in, XorKey xorKey, int sampleSize, BufferedWriter csvWriter) {
+   public static void measureRTTWithTCPMessages(FileWriter logFileWriter, Transport transport, MessageCipher cipher, int sampleSize, BufferedWriter csvWriter, StageTimer stageTimer, ClockOffsetEstimator clockEstimator, PauseCorrelator pauseCorrelator) {
       int message1Size = 8;
       log("Started RTT to send " + message1Size + " Bytes", logFileWriter);
-      measureRTTWithTCP(message1Size, logFileWriter, out, in, xorKey, sampleSize, csvWriter);
+      measureRTTWithTCP(message1Size, logFileWriter, transport, cipher, sampleSize, csvWriter, stageTimer, clockEstimator, pauseCorrelator);
       int message2Size = 64;
       log("Started RTT to send " + message2Size + " Bytes", logFileWriter);
-      measureRTTWithTCP(message2Size, logFileWriter, out, in, xorKey, sampleSize, csvWriter);
+      measureRTTWithTCP(message2Size, logFileWriter, transport, cipher, sampleSize, csvWriter, stageTimer, clockEstimator, pauseCorrelator);
       int message3Size = 512;
       log("Started RTT to send " + message3Size + " Bytes", logFileWriter);
-      measureRTTWithTCP(message3Size, logFileWriter, out, in, xorKey, sampleSize, csvWriter);
+      measureRTTWithTCP(message3Size, logFileWriter, transport, cipher, sampleSize, csvWriter, stageTimer, clockEstimator, pauseCorrelator);
    }
 
    /**
@@ -165,39 +345,62 @@ public class PerformanceClient {
     * is started the message is sent off. The message is then retrieved from the server and validated. Finally the timer is stopped and the time is logged.
     * @param messageSize Specifies the message size in bytes to be sent to the server.
     * @param logFileWriter The file writer which will be used to log test information.
-    * @param out The output data stream of the server that the client is connected to.
-    * @param in The input data stream of the server that the client is connected to.
-    * @param xorKey The xor key to be used for encrypting and decrypting the message.
+    * @param transport The transport connected to the server.
+    * @param cipher The cipher to be used for encrypting and decrypting the message.
     * @param sampleSize Specifies the amount of samples to be collected before the method is exited.
+    * @param stageTimer The timer that records the stages of each sample when stage timing is enabled.
+    * @param clockEstimator The estimator fed with the timestamps the server echoes when timestamp echo is enabled.
+    * @param pauseCorrelator The correlator the windows of the samples are recorded in.
     * @return The xor key for future use.
     */
-   public static void measureRTTWithTCP(int messageSize, FileWriter logFileWriter, DataOutputStream out, DataInputStream in, XorKey xorKey, int sampleSize, BufferedWriter csvWriter) {
+   public static void measureRTTWithTCP(int messageSize, FileWriter logFileWriter, Transport transport, MessageCipher cipher, int sampleSize, BufferedWriter csvWriter, StageTimer stageTimer, ClockOffsetEstimator clockEstimator, PauseCorrelator pauseCorrelator) {
       long[] expectedMessage = generateData(messageSize);
+      int payloadBytes = expectedMessage.length * Long.BYTES;
+      int encryptedBytes = payloadBytes + cipher.overhead();
+      // The server appends its timestamps after the encrypted payload when timestamp echo is enabled
+      ByteBuffer byteBuffer = ByteBuffer.allocateDirect(encryptedBytes + clockEstimator.trailerBytes());
       for (int sample = 1; sample <= sampleSize; sample++) {
          long[] message = generateData(messageSize);
-         // encode message
-         xorKey.xorWithKey(message);
+         stageTimer.begin();
          try {
-            ByteBuffer byteBuffer = ByteBuffer.allocate(message.length * Long.BYTES);
+            byteBuffer.clear();
             byteBuffer.asLongBuffer().put(message);
+            byteBuffer.limit(payloadBytes);
+            // encode message
+            cipher.encrypt(byteBuffer);
+            stageTimer.mark(StageTimer.ENCODE);
             long start = System.nanoTime();
-            out.write(byteBuffer.array());
-            out.flush();
+            transport.send(byteBuffer);
+            stageTimer.mark(StageTimer.SEND);
+            byteBuffer.clear();
+            transport.receive(byteBuffer);
+            long receiveTime = System.nanoTime();
+            stageTimer.mark(StageTimer.FIRST_BYTE, transport.getFirstByteNanoTime());
+            stageTimer.mark(StageTimer.LAST_BYTE, receiveTime);
             long[] response = new long[message.length];
-            for (int i = 0; i < message.length; i++) {
-               response[i] = in.readLong();
-            }
             // decode received message
-            xorKey.xorWithKey(response);
+            byteBuffer.position(0).limit(encryptedBytes);
+            cipher.decrypt(byteBuffer);
+            byteBuffer.asLongBuffer().get(response);
+            stageTimer.mark(StageTimer.DECODE);
             boolean validated = validateResponse(expectedMessage, response);
+            stageTimer.mark(StageTimer.VALIDATE);
             long timeElapsed = System.nanoTime() - start;
-            csvWriter.write("" + sample + "," + timeElapsed + "," + validated + "\n");
+            stageTimer.end();
+            // The timestamps the server echoed are read after the sample ended so they are not part of it, decoding
+            // limited the buffer to the payload before them
+            if (clockEstimator.isEnabled()) clockEstimator.record(start, byteBuffer.clear(), encryptedBytes, receiveTime);
+            pauseCorrelator.record(start, start + timeElapsed);
+            csvWriter.write("" + sample + "," + timeElapsed + "," + validated + "," + messageSize + "B\n");
          } catch (IOException e) {
             System.err.println("I/O error during measurement of RTT with TCP");
             e.printStackTrace();
             System.exit(1);
          }
       }
+      stageTimer.reportAndReset(transport.getName() + " RTT of " + messageSize + " Bytes", logFileWriter);
+      clockEstimator.reportAndReset(transport.getName() + " RTT of " + messageSize + " Bytes", logFileWriter);
+      pauseCorrelator.reportAndReset(transport.getName() + " RTT of " + messageSize + " Bytes", logFileWriter);
    } 
 
    /**
@@ -249,13 +452,11 @@ public class PerformanceClient {
       return logFileWriter;
    }
    
-   public static void closeTCPIOs(Socket socket, DataOutputStream out, DataInputStream in) {
+   public static void closeTransport(Transport transport) {
       try {
-         in.close();
-         out.close();
-         socket.close();
+         transport.close();
       } catch (IOException e) {
-         System.err.println("There was an I/O exception when closing resources");
+         System.err.println("There was an I/O exception when closing the " + transport.getName() + " transport");
          e.printStackTrace();
          System.exit(1);
       }
@@ -284,19 +485,22 @@ public class PerformanceClient {
     * Measures the throughput for a specified number of messages that consist of a specified size and logs the collected throughput for a specified sample size. 
     * @param numMessages The number of messages to be sent and ACKed.
     * @param messageSize The size of each message.
-    * @param out The data output stream that is connected to the server.
-    * @param in The data input stream that is connected to the server.
+    * @param transport The transport connected to the server.
     * @param logFileWriter The file writer that logs the throughput and test information.
     * @param sampleSize The number of samples to be collected before the function exits.
-    * @param xorKey The xor key to be used for encrypting and decrypting messages.
+    * @param cipher The cipher to be used for encrypting and decrypting messages.
+    * @param codec The codec messages are compressed with before they are encrypted, null to send them uncompressed.
+    * @param pauseCorrelator The correlator the windows of the samples are recorded in.
     * @return The xor key for future use.
     */
-   public static void measureThroughputForTCP(int numMessages, int messageSize, DataOutputStream out, DataInputStream in, FileWriter logFileWriter, XorKey xorKey, int sampleSize, BufferedWriter csvWriter) {
+   public static void measureThroughputForTCP(int numMessages, int messageSize, Transport transport, FileWriter logFileWriter, MessageCipher cipher, int sampleSize, BufferedWriter csvWriter, PayloadCodec codec, PauseCorrelator pauseCorrelator) {
       int numLongsInMessage = messageSize / Long.BYTES;
-      ByteBuffer byteBuffer = ByteBuffer.allocate(messageSize);
+      ByteBuffer byteBuffer = ByteBuffer.allocateDirect(messageSize + cipher.overhead());
+      CompressionStage compressionStage = codec == null ? null : new CompressionStage(codec, messageSize, cipher);
+      long totalNanoTime = 0;
       int dataSize = numMessages * messageSize;
       long statusOkay = 200;
-      byte[] encodedMessage = new byte[messageSize];
+      ByteBuffer ackBuffer = ByteBuffer.allocate(Long.BYTES);
       log("Started throughput measurements for " + numMessages + " messages of size " + messageSize + " Bytes", logFileWriter);
       for (int sample = 1; sample <= sampleSize; sample++) {
          boolean acked = false;
@@ -305,114 +509,151 @@ public class PerformanceClient {
             long startTime = System.nanoTime();
             for (int messageNum = 1; messageNum <= numMessages; messageNum++) {
                int startIndex = (messageNum - 1) * numLongsInMessage;
-               int endIndex = messageNum * numLongsInMessage;
-               // encode the message
-               xorKey.xorWithKeyAndBounds(data, startIndex, endIndex);
-               byteBuffer.rewind();
-               byteBuffer.asLongBuffer().put(data, startIndex, numLongsInMessage);
-               byteBuffer.rewind();
-               byteBuffer.get(encodedMessage);
-               out.write(encodedMessage);
-               out.flush();
-               long status = in.readLong();
+               if (compressionStage != null) {
+                  // compress and encode the message
+                  transport.send(compressionStage.encode(data, startIndex));
+               } else {
+                  // encode the message
+                  byteBuffer.clear();
+                  byteBuffer.asLongBuffer().put(data, startIndex, numLongsInMessage);
+                  byteBuffer.limit(messageSize);
+                  cipher.encrypt(byteBuffer);
+                  transport.send(byteBuffer);
+               }
+               ackBuffer.clear();
+               transport.receive(ackBuffer);
+               long status = ackBuffer.getLong(0);
                acked = status == statusOkay;
                if (!acked) System.out.println("There was an issue with the ack.");
             }
             long nanoTime = System.nanoTime() - startTime;
+            totalNanoTime += nanoTime;
+            pauseCorrelator.record(startTime, startTime + nanoTime);
             double throughputBitsPerSecond = calculateThroughput(nanoTime, dataSize);
-            csvWriter.write("" + sample + "," + throughputBitsPerSecond + "," + acked + "\n");
+            csvWriter.write("" + sample + "," + throughputBitsPerSecond + "," + acked + "," + numMessages + "x" + messageSize + "B\n");
          } catch (IOException e) {
             System.err.println("There was an I/O exception thrown when trying to send a message during throughput measurement.");
             e.printStackTrace();
             System.exit(1);
          }
       }
+      if (compressionStage != null) logCompression(transport.getName() + " throughput of " + numMessages + "x" + messageSize + "B", compressionStage, totalNanoTime, logFileWriter);
+      pauseCorrelator.reportAndReset(transport.getName() + " throughput of " + numMessages + "x" + messageSize + "B", logFileWriter);
    }
 
    /**
     * A Method that encapsulates the throughput tests for tcp communication. 
-    * @param out The data output stream connected to the server.
-    * @param in The data input stream connected to the server.
+    * @param transport The transport connected to the server.
     * @param logFileWriter The file writer used to log test information.
     * @param sampleSize The number of samples to be collected for each test.
-    * @param xorKey the xor key used for encrypting and decrypting messages.
+    * @param cipher the cipher used for encrypting and decrypting messages.
+    * @param codec The codec messages are compressed with before they are encrypted, null to send them uncompressed.
+    * @param pauseCorrelator The correlator the windows of the samples are recorded in.
     * @return The xor key for future use.
     */
-   public static void measureThroughputForTCPTests(DataOutputStream out, DataInputStream in, FileWriter logFileWriter, XorKey xorKey, int sampleSize, BufferedWriter csvWriter) {
+   public static void measureThroughputForTCPTests(Transport transport, FileWriter logFileWriter, MessageCipher cipher, int sampleSize, BufferedWriter csvWriter, PayloadCodec codec, PauseCorrelator pauseCorrelator) {
       int numMessagesForTest1 = 16384;
       int messageSizeForTest1 = 64;
-      measureThroughputForTCP(numMessagesForTest1, messageSizeForTest1, out, in, logFileWriter, xorKey, sampleSize, csvWriter);
+      measureThroughputForTCP(numMessagesForTest1, messageSizeForTest1, transport, logFileWriter, cipher, sampleSize, csvWriter, codec, pauseCorrelator);
 
       int numMessagesForTest2 = 4096;
       int messageSizeForTest2 = 256;
-      measureThroughputForTCP(numMessagesForTest2, messageSizeForTest2, out, in, logFileWriter, xorKey, sampleSize, csvWriter);
+      measureThroughputForTCP(numMessagesForTest2, messageSizeForTest2, transport, logFileWriter, cipher, sampleSize, csvWriter, codec, pauseCorrelator);
 
       int numMessagesForTest3 = 1024;
       int messageSizeForTest3 = 1024;
-      measureThroughputForTCP(numMessagesForTest3, messageSizeForTest3, out, in, logFileWriter, xorKey, sampleSize, csvWriter);
+      measureThroughputForTCP(numMessagesForTest3, messageSizeForTest3, transport, logFileWriter, cipher, sampleSize, csvWriter, codec, pauseCorrelator);
    }
 
-   public static void measureRTTWithUDP(int messageSize, DatagramChannel datagramChannel, InetSocketAddress address, FileWriter logFileWriter, XorKey xorKey, int sampleSize, BufferedWriter csvWriter) {
+   public static void measureRTTWithUDP(int messageSize, DatagramTransport transport, FileWriter logFileWriter, MessageCipher cipher, int sampleSize, BufferedWriter csvWriter, StageTimer stageTimer, ClockOffsetEstimator clockEstimator, PauseCorrelator pauseCorrelator) {
       long[] expectedMessage = generateData(messageSize);
-      ByteBuffer byteBuffer = ByteBuffer.allocate(messageSize);
+      int encryptedBytes = messageSize + cipher.overhead();
+      ByteBuffer byteBuffer = ByteBuffer.allocateDirect(encryptedBytes + clockEstimator.trailerBytes());
       log("Started RTT with UDP of size " + messageSize + " Bytes", logFileWriter);
       for (int sample = 1; sample <= sampleSize; sample++) {
          try {
             long[] message = generateData(messageSize);
+            stageTimer.begin();
             // encode message
-            xorKey.xorWithKey(message);
+            byteBuffer.clear();
             byteBuffer.asLongBuffer().put(message);
-            byteBuffer.rewind();
+            byteBuffer.limit(messageSize);
+            long sequence = transport.nextSequence();
+            cipher.beginDatagram(sequence);
+            cipher.encrypt(byteBuffer);
+            stageTimer.mark(StageTimer.ENCODE);
             long startTime = System.nanoTime();
-            datagramChannel.send(byteBuffer, address);
-            byteBuffer.rewind();
-            datagramChannel.receive(byteBuffer);
-            byteBuffer.rewind();
+            transport.send(byteBuffer);
+            stageTimer.mark(StageTimer.SEND);
+            byteBuffer.clear();
+            try {
+               transport.receive(byteBuffer);
+            } catch (SocketTimeoutException e) {
+               // The request or the reply was lost, the sample is left out
+               transport.countLost();
+               continue;
+            }
+            long receiveTime = System.nanoTime();
+            stageTimer.mark(StageTimer.FIRST_BYTE, transport.getFirstByteNanoTime());
+            stageTimer.mark(StageTimer.LAST_BYTE, receiveTime);
             long[] receivedMessage = new long[message.length];
-            byteBuffer.asLongBuffer().get(receivedMessage);
             // decode
-            xorKey.xorWithKey(receivedMessage);
+            byteBuffer.position(0).limit(encryptedBytes);
+            cipher.beginDatagram(sequence);
+            cipher.decrypt(byteBuffer);
+            byteBuffer.asLongBuffer().get(receivedMessage);
+            stageTimer.mark(StageTimer.DECODE);
             boolean validResponse = validateResponse(expectedMessage, receivedMessage);
+            stageTimer.mark(StageTimer.VALIDATE);
             long totalTime = System.nanoTime() - startTime;
-            csvWriter.write("" + sample + "," + totalTime + "," + validResponse + "\n");
-            // reset bytebuffer
-            byteBuffer.rewind();
+            stageTimer.end();
+            // The timestamps the server echoed are read after the sample ended so they are not part of it, decoding
+            // limited the buffer to the payload before them
+            if (clockEstimator.isEnabled()) clockEstimator.record(startTime, byteBuffer.clear(), encryptedBytes, receiveTime);
+            pauseCorrelator.record(startTime, startTime + totalTime);
+            csvWriter.write("" + sample + "," + totalTime + "," + validResponse + "," + messageSize + "B\n");
          } catch(IOException e) {
             System.err.println("There was an I/O Exception thrown while measuring RTT with UDP.");
             e.printStackTrace();
             System.exit(1);
          }
       }
+      logDatagramLoss(transport.getName() + " RTT of " + messageSize + " Bytes", transport, sampleSize, logFileWriter);
+      stageTimer.reportAndReset(transport.getName() + " RTT of " + messageSize + " Bytes", logFileWriter);
+      clockEstimator.reportAndReset(transport.getName() + " RTT of " + messageSize + " Bytes", logFileWriter);
+      pauseCorrelator.reportAndReset(transport.getName() + " RTT of " + messageSize + " Bytes", logFileWriter);
    }
 
-   public static void measureRTTWithUDPTests(DatagramChannel datagramChannel, InetSocketAddress address, FileWriter logFileWriter, XorKey xorKey, int sampleSize, BufferedWriter csvWriter) {
+   public static void measureRTTWithUDPTests(DatagramTransport transport, FileWriter logFileWriter, MessageCipher cipher, int sampleSize, BufferedWriter csvWriter, StageTimer stageTimer, ClockOffsetEstimator clockEstimator, PauseCorrelator pauseCorrelator) {
       int messageSizeForTest1 = 8;
-      measureRTTWithUDP(messageSizeForTest1, datagramChannel, address, logFileWriter, xorKey, sampleSize, csvWriter);
+      measureRTTWithUDP(messageSizeForTest1, transport, logFileWriter, cipher, sampleSize, csvWriter, stageTimer, clockEstimator, pauseCorrelator);
 
       int messageSizeForTest2 = 64;
-      measureRTTWithUDP(messageSizeForTest2, datagramChannel, address, logFileWriter, xorKey, sampleSize, csvWriter);
+      measureRTTWithUDP(messageSizeForTest2, transport, logFileWriter, cipher, sampleSize, csvWriter, stageTimer, clockEstimator, pauseCorrelator);
 
       int messageSizeForTest3 = 512;
-      measureRTTWithUDP(messageSizeForTest3, datagramChannel, address, logFileWriter, xorKey, sampleSize, csvWriter);
+      measureRTTWithUDP(messageSizeForTest3, transport, logFileWriter, cipher, sampleSize, csvWriter, stageTimer, clockEstimator, pauseCorrelator);
    }
 
-   public static void measureThroughputForUDPTests(DatagramChannel datagramChannel, InetSocketAddress address, FileWriter logFileWriter, XorKey xorKey, int sampleSize, BufferedWriter csvWriter) {
+   public static void measureThroughputForUDPTests(DatagramTransport transport, FileWriter logFileWriter, MessageCipher cipher, int sampleSize, BufferedWriter csvWriter, PayloadCodec codec, PauseCorrelator pauseCorrelator) {
       int numMessagesForTest1 = 16384;
       int messageSizeForTest1 = 64;
-      measureThroughputForUDPMessage(numMessagesForTest1, messageSizeForTest1, datagramChannel, address, logFileWriter, xorKey, sampleSize, csvWriter);
+      measureThroughputForUDPMessage(numMessagesForTest1, messageSizeForTest1, transport, logFileWriter, cipher, sampleSize, csvWriter, codec, pauseCorrelator);
 
       int numMessagesForTest2 = 4096;
       int messageSizeForTest2 = 256;
-      measureThroughputForUDPMessage(numMessagesForTest2, messageSizeForTest2, datagramChannel, address, logFileWriter, xorKey, sampleSize, csvWriter);
+      measureThroughputForUDPMessage(numMessagesForTest2, messageSizeForTest2, transport, logFileWriter, cipher, sampleSize, csvWriter, codec, pauseCorrelator);
 
       int numMessagesForTest3 = 1024;
       int messageSizeForTest3 = 1024;
-      measureThroughputForUDPMessage(numMessagesForTest3, messageSizeForTest3, datagramChannel, address, logFileWriter, xorKey, sampleSize, csvWriter);
+      measureThroughputForUDPMessage(numMessagesForTest3, messageSizeForTest3, transport, logFileWriter, cipher, sampleSize, csvWriter, codec, pauseCorrelator);
    }
 
-   public static void measureThroughputForUDPMessage(int numMessages, int messageSize, DatagramChannel datagramChannel, InetSocketAddress address, FileWriter logFileWriter, XorKey xorKey, int sampleSize, BufferedWriter csvWriter) {
+   public static void measureThroughputForUDPMessage(int numMessages, int messageSize, DatagramTransport transport, FileWriter logFileWriter, MessageCipher cipher, int sampleSize, BufferedWriter csvWriter, PayloadCodec codec, PauseCorrelator pauseCorrelator) {
       int numLongsInMessage = messageSize / Long.BYTES;
-      ByteBuffer byteBuffer = ByteBuffer.allocate(messageSize);
+      ByteBuffer byteBuffer = ByteBuffer.allocateDirect(messageSize + cipher.overhead());
+      CompressionStage compressionStage = codec == null ? null : new CompressionStage(codec, messageSize, cipher);
+      long totalNanoTime = 0;
       int dataSize = numMessages * messageSize;
       long statusOkay = 200;
       log("Started throughput measurements for " + numMessages + " messages of size " + messageSize + " Bytes", logFileWriter);
@@ -420,18 +661,31 @@ public class PerformanceClient {
          boolean acked = false;
          try {
             long[] data = generateData(dataSize);
+            long lostBefore = transport.getNumLost();
             long startTime = System.nanoTime();
             for (int messageNum = 1; messageNum <= numMessages; messageNum++) {
                int startIndex = (messageNum - 1) * numLongsInMessage;
-               int endIndex = messageNum * numLongsInMessage;
-               // encode the message
-               xorKey.xorWithKeyAndBounds(data, startIndex, endIndex);
-               byteBuffer.asLongBuffer().put(data, startIndex, numLongsInMessage);
-               byteBuffer.rewind();
-               datagramChannel.send(byteBuffer, address);
+               cipher.beginDatagram(transport.nextSequence());
+               if (compressionStage != null) {
+                  // compress and encode the message
+                  transport.send(compressionStage.encode(data, startIndex));
+               } else {
+                  // encode the message
+                  byteBuffer.asLongBuffer().put(data, startIndex, numLongsInMessage);
+                  byteBuffer.limit(messageSize);
+                  cipher.encrypt(byteBuffer);
+                  transport.send(byteBuffer);
+               }
                byteBuffer.rewind();
                byteBuffer.limit(Long.BYTES);
-               datagramChannel.receive(byteBuffer);
+               try {
+                  transport.receive(byteBuffer);
+               } catch (SocketTimeoutException e) {
+                  // The message or its ack was lost, it does not count towards the throughput
+                  transport.countLost();
+                  byteBuffer.clear();
+                  continue;
+               }
                byteBuffer.rewind();
                long status = byteBuffer.getLong();
                acked = status == statusOkay;
@@ -440,14 +694,159 @@ public class PerformanceClient {
                byteBuffer.clear();
             }
             long nanoTime = System.nanoTime() - startTime;
-            double throughputBitsPerSecond = calculateThroughput(nanoTime, dataSize);
-            csvWriter.write("" + sample + "," + throughputBitsPerSecond + "," + acked + "\n");
+            totalNanoTime += nanoTime;
+            pauseCorrelator.record(startTime, startTime + nanoTime);
+            long ackedBytes = dataSize - (transport.getNumLost() - lostBefore) * messageSize;
+            double throughputBitsPerSecond = calculateThroughput(nanoTime, (int) ackedBytes);
+            csvWriter.write("" + sample + "," + throughputBitsPerSecond + "," + acked + "," + numMessages + "x" + messageSize + "B\n");
          } catch (IOException e) {
             System.err.println("There was an I/O exception thrown when trying to send a message during UDP throughput measurement.");
             e.printStackTrace();
             System.exit(1);
          }
       }
+      logDatagramLoss(transport.getName() + " throughput of " + numMessages + "x" + messageSize + "B", transport, (long) sampleSize * numMessages, logFileWriter);
+      if (compressionStage != null) logCompression(transport.getName() + " throughput of " + numMessages + "x" + messageSize + "B", compressionStage, totalNanoTime, logFileWriter);
+      pauseCorrelator.reportAndReset(transport.getName() + " throughput of " + numMessages + "x" + messageSize + "B", logFileWriter);
+   }
+
+   /**
+    * Logs how many requests of a datagram test got no reply within the receive timeout and how many late or duplicate
+    * replies were dropped, then resets the counters for the next test. Lost RTT samples are left out of the csv file and
+    * lost throughput messages do not count towards the throughput.
+    * @param testName The name of the test.
+    * @param transport The datagram transport the test ran over.
+    * @param numRequests The number of requests sent in the test.
+    * @param logFileWriter The file writer used to log test information.
+    */
+   public static void logDatagramLoss(String testName, DatagramTransport transport, long numRequests, FileWriter logFileWriter) {
+      log(testName + ": " + transport.getNumLost() + " of " + numRequests + " requests lost, " + transport.getNumDropped()
+            + " late or duplicate replies dropped", logFileWriter);
+      transport.resetLossCounters();
+   }
+
+   /**
+    * Logs how much a codec shrank the messages of a throughput test. The goodput counts the uncompressed bytes the
+    * application sent while the wire rate counts the bytes that were actually sent, including the length header.
+    * @param test The name of the test.
+    * @param compressionStage The compression stage used by the test.
+    * @param totalNanoTime The time all samples of the test took in nanoseconds.
+    * @param logFileWriter The file writer used to log test information.
+    */
+   public static void logCompression(String test, CompressionStage compressionStage, long totalNanoTime, FileWriter logFileWriter) {
+      long logicalBytes = compressionStage.getLogicalBytes();
+      long wireBytes = compressionStage.getWireBytes();
+      double seconds = totalNanoTime / 1e9;
+      log(String.format("%s with %s: %d logical bytes, %d wire bytes, ratio %.3f, goodput %.4g bits/s, wire rate %.4g bits/s",
+            test, compressionStage.getCodec().getName(), logicalBytes, wireBytes, (double) wireBytes / logicalBytes,
+            logicalBytes * Byte.SIZE / seconds, wireBytes * Byte.SIZE / seconds), logFileWriter);
+      compressionStage.resetCounters();
+   }
+
+   /**
+    * Runs a workload over a stream transport as an open loop. Requests are due on the schedule of the think times and
+    * are sent without waiting for the responses of earlier ones, as long as the window of outstanding requests and
+    * response bytes has room. The server answers in order, so a small request can queue behind a large response on the
+    * connection. The latency of a request runs from the time it was due until its response was validated, so the time
+    * it waited for the window or for the client to finish receiving is counted as well. Buffers are sized for the
+    * largest message up front, so nothing is allocated while the requests are timed. The latencies are reported per
+    * request size bucket once the run is over.
+    * @param workload The workload to run.
+    * @param transport The stream transport connected to the server.
+    * @param logFileWriter The file writer used for logging test information.
+    * @param cipher The cipher of the session.
+    * @param csvWriter The csv file every request is written to with its size bucket as the test.
+    */
+   public static void measureWorkload(Workload workload, Transport transport, FileWriter logFileWriter, MessageCipher cipher, BufferedWriter csvWriter) {
+      String testName = transport.getName() + " workload";
+      log("Started " + testName + " " + workload, logFileWriter);
+      int headerBytes = WorkloadPayload.HEADER_BYTES;
+      int maxBytes = workload.getMaxBytes();
+      int numRequests = workload.getNumRequests();
+      int window = workload.getWindow();
+      WorkloadPayload payload = new WorkloadPayload(maxBytes);
+      ByteBuffer sendBuffer = ByteBuffer.allocateDirect(headerBytes + maxBytes + cipher.overhead());
+      ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(maxBytes + cipher.overhead());
+      // The outstanding requests, request n is kept at index n % window
+      long[] dueTimes = new long[window];
+      int[] requestSizes = new int[window];
+      int[] responseSizes = new int[window];
+      LatencyBuckets latencyBuckets = new LatencyBuckets(numRequests);
+      try {
+         // The first header tells the server the size of the largest message so it can size its buffers
+         sendBuffer.clear().limit(headerBytes);
+         WorkloadPayload.putHeader(sendBuffer, maxBytes, maxBytes);
+         transport.send(sendBuffer);
+         int numSent = 0;
+         int numReceived = 0;
+         int outstandingBytes = 0;
+         int requestBytes = workload.nextRequestBytes();
+         int responseBytes = workload.responseBytes(requestBytes);
+         long dueTime = System.nanoTime();
+         while (numReceived < numRequests) {
+            int numOutstanding = numSent - numReceived;
+            boolean windowOpen = numSent < numRequests && numOutstanding < window && (numOutstanding == 0
+                  || outstandingBytes + responseBytes + cipher.overhead() <= workload.getWindowBytes());
+            if (windowOpen && (numOutstanding == 0 || System.nanoTime() - dueTime >= 0)) {
+               // Nothing to receive while no request is outstanding, so wait for the next one to be due
+               waitNanos(dueTime - System.nanoTime());
+               // encode request
+               sendBuffer.clear();
+               WorkloadPayload.putHeader(sendBuffer, requestBytes, responseBytes);
+               payload.fill(sendBuffer, headerBytes, requestBytes);
+               sendBuffer.limit(headerBytes + requestBytes).position(headerBytes);
+               cipher.encrypt(sendBuffer);
+               sendBuffer.position(0);
+               transport.send(sendBuffer);
+               int index = numSent % window;
+               dueTimes[index] = dueTime;
+               requestSizes[index] = requestBytes;
+               responseSizes[index] = responseBytes;
+               outstandingBytes += responseBytes + cipher.overhead();
+               numSent++;
+               dueTime += workload.nextThinkNanos();
+               if (numSent < numRequests) {
+                  requestBytes = workload.nextRequestBytes();
+                  responseBytes = workload.responseBytes(requestBytes);
+               }
+            } else {
+               // The responses come back in the order the requests were sent
+               int index = numReceived % window;
+               receiveBuffer.clear().limit(responseSizes[index] + cipher.overhead());
+               transport.receive(receiveBuffer);
+               // decode response
+               receiveBuffer.flip();
+               cipher.decrypt(receiveBuffer);
+               boolean validated = payload.matches(receiveBuffer, 0, responseSizes[index]);
+               long latency = System.nanoTime() - dueTimes[index];
+               latencyBuckets.record(requestSizes[index], latency, validated);
+               outstandingBytes -= responseSizes[index] + cipher.overhead();
+               numReceived++;
+            }
+         }
+         // A request size of 0 ends the run
+         sendBuffer.clear().limit(headerBytes);
+         WorkloadPayload.putHeader(sendBuffer, 0, 0);
+         transport.send(sendBuffer);
+         latencyBuckets.reportAndReset(testName, csvWriter, logFileWriter);
+      } catch (IOException e) {
+         System.err.println("I/O error during the workload run");
+         e.printStackTrace();
+         System.exit(1);
+      }
+   }
+
+   /**
+    * Waits until the next request of a workload is due. Short waits are spun because parking would overshoot them.
+    * @param nanos The time to wait in nanoseconds.
+    */
+   public static void waitNanos(long nanos) {
+      if (nanos <= 0) return;
+      long deadline = System.nanoTime() + nanos;
+      if (nanos > SPIN_WAIT_NANOS) LockSupport.parkNanos(nanos - SPIN_WAIT_NANOS);
+      while (System.nanoTime() - deadline < 0) {
+         Thread.onSpinWait();
+      }
    }
 
    public static double calculateThroughput(long nanoTime, int dataSize) {
@@ -463,7 +862,8 @@ public class PerformanceClient {
       String csvFileName = messageType + test + ".csv";
       try {
          bufferedWriter = new BufferedWriter(new PrintWriter(csvFileName));
-         bufferedWriter.write("Sample Number," + messageType + " " + test + ",valid\n");
+         // The test column tells apart the message sizes that share a csv file
+         bufferedWriter.write("Sample Number," + messageType + " " + test + ",valid,test\n");
       } catch (IOException e) {
          System.err.println("An I/O exception was thrown while setting up the csv " + csvFileName);
          e.printStackTrace();
@@ -0,0 +1,238 @@
+package edu.oswego.cs;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.SplittableRandom;
+
+/**
+ * Compares a candidate run against a baseline run from the results directory written by the client.
+ * <p>
+ * For every test both runs contain, the relative change of the median is reported with a bootstrap confidence interval
+ * and the p-value of a two sided Mann-Whitney U test. A test regressed when the change is significant and even the
+ * most favourable end of the confidence interval is worse than the threshold. Higher is worse for RTT tests and lower
+ * is worse for throughput tests. The command exits with status 2 if any test regressed.
+ * <p>
+ * Usage:
+ * <pre>
+ * ResultsAnalyzer list [resultsDir]
+ * ResultsAnalyzer compare &lt;baselineRunDir&gt; &lt;candidateRunDir&gt; [thresholdPercent] [alpha]
+ * </pre>
+ */
+public class ResultsAnalyzer {
+
+   private static final int BOOTSTRAP_RESAMPLES = 10000;
+
+   private static final double CONFIDENCE_LEVEL = 0.95;
+
+   private static final int REGRESSION_EXIT_STATUS = 2;
+
+   public static void main(String[] args) {
+      if (args.length == 0) {
+         printUsage();
+         System.exit(1);
+      }
+      try {
+         switch (args[0]) {
+            case "list":
+               listRuns(Path.of(args.length > 1 ? args[1] : "results"));
+               break;
+            case "compare":
+               if (args.length < 3) {
+                  printUsage();
+                  System.exit(1);
+               }
+               double thresholdPercent = args.length > 3 ? Double.parseDouble(args[3]) : 5;
+               double alpha = args.length > 4 ? Double.parseDouble(args[4]) : 0.05;
+               boolean regressed = compareRuns(Path.of(args[1]), Path.of(args[2]), thresholdPercent / 100, alpha);
+               if (regressed) System.exit(REGRESSION_EXIT_STATUS);
+               break;
+            default:
+               printUsage();
+               System.exit(1);
+         }
+      } catch (IOException e) {
+         System.err.println("There was an I/O exception thrown while reading the results");
+         e.printStackTrace();
+         System.exit(1);
+      }
+   }
+
+   public static void printUsage() {
+      System.err.println("Usage: ResultsAnalyzer list [resultsDir]");
+      System.err.println("       ResultsAnalyzer compare <baselineRunDir> <candidateRunDir> [thresholdPercent] [alpha]");
+   }
+
+   public static void listRuns(Path resultsDir) throws IOException {
+      for (Path runDir : ResultsStore.listRuns(resultsDir)) {
+         Properties metadata = ResultsStore.loadMetadata(runDir);
+         System.out.println(runDir + "  transport=" + metadata.getProperty("transport") + " samples="
+               + metadata.getProperty("sampleSize") + " java=" + metadata.getProperty("java.version")
+               + " options=" + metadata.getProperty("sessionOptions"));
+      }
+   }
+
+   /**
+    * Compares every test the two runs have in common and prints one line per test.
+    * @param baselineDir The directory of the baseline run.
+    * @param candidateDir The directory of the candidate run.
+    * @param threshold The relative change that is tolerated, for example 0.05 for 5%.
+    * @param alpha The significance level of the Mann-Whitney U test.
+    * @return True if at least one test regressed.
+    * @throws IOException If one of the runs could not be read.
+    */
+   public static boolean compareRuns(Path baselineDir, Path candidateDir, double threshold, double alpha) throws IOException {
+      warnAboutConfigDifferences(ResultsStore.loadMetadata(baselineDir), ResultsStore.loadMetadata(candidateDir));
+      Map<String, double[]> baseline = ResultsStore.loadSamples(baselineDir);
+      Map<String, double[]> candidate = ResultsStore.loadSamples(candidateDir);
+      System.out.println(String.format("%-28s %14s %14s %9s %21s %9s  %s", "test", "baseline p50", "candidate p50", "change", "95% CI", "p-value", "verdict"));
+      boolean regressed = false;
+      for (Map.Entry<String, double[]> entry : baseline.entrySet()) {
+         String test = entry.getKey();
+         double[] baselineSamples = entry.getValue();
+         double[] candidateSamples = candidate.get(test);
+         if (candidateSamples == null || baselineSamples.length < 2 || candidateSamples.length < 2) {
+            System.out.println(String.format("%-28s skipped, not enough samples in both runs", test));
+            continue;
+         }
+         boolean higherIsWorse = !test.contains("Throughput");
+         double baselineMedian = median(baselineSamples);
+         double candidateMedian = median(candidateSamples);
+         double change = candidateMedian / baselineMedian - 1;
+         double[] confidenceInterval = bootstrapRelativeChange(baselineSamples, candidateSamples, test.hashCode());
+         double pValue = mannWhitneyPValue(baselineSamples, candidateSamples);
+
+         // Positive values mean the candidate is worse regardless of the direction of the metric
+         double worseningLow = higherIsWorse ? confidenceInterval[0] : -confidenceInterval[1];
+         double worseningHigh = higherIsWorse ? confidenceInterval[1] : -confidenceInterval[0];
+         String verdict;
+         if (pValue < alpha && worseningLow > threshold) {
+            verdict = "REGRESSION";
+            regressed = true;
+         } else if (pValue < alpha && worseningHigh < -threshold) {
+            verdict = "improvement";
+         } else {
+            verdict = "no significant change";
+         }
+         System.out.println(String.format("%-28s %14.6g %14.6g %+8.2f%% [%+8.2f%%, %+8.2f%%] %9.4f  %s", test, baselineMedian,
+               candidateMedian, change * 100, confidenceInterval[0] * 100, confidenceInterval[1] * 100, pValue, verdict));
+      }
+      for (String test : candidate.keySet()) {
+         if (!baseline.containsKey(test)) System.out.println(String.format("%-28s skipped, missing from the baseline", test));
+      }
+      return regressed;
+   }
+
+   private static void warnAboutConfigDifferences(Properties baseline, Properties candidate) {
+      for (String key : List.of("host", "transport", "sampleSize", "sessionOptions", "java.version")) {
+         String baselineValue = baseline.getProperty(key);
+         String candidateValue = candidate.getProperty(key);
+         if (baselineValue != null && !baselineValue.equals(candidateValue)) {
+            System.out.println("Note: " + key + " differs between the runs (" + baselineValue + " vs " + candidateValue + ")");
+         }
+      }
+   }
+
+   /**
+    * Resamples both runs with replacement and collects the relative change of the medians.
+    * @param baseline The samples of the baseline run.
+    * @param candidate The samples of the candidate run.
+    * @param seed The seed of the resampling so repeated comparisons print the same interval.
+    * @return The lower and upper bound of the percentile confidence interval of the relative change.
+    */
+   public static double[] bootstrapRelativeChange(double[] baseline, double[] candidate, long seed) {
+      SplittableRandom random = new SplittableRandom(seed);
+      double[] baselineResample = new double[baseline.length];
+      double[] candidateResample = new double[candidate.length];
+      double[] changes = new double[BOOTSTRAP_RESAMPLES];
+      for (int i = 0; i < BOOTSTRAP_RESAMPLES; i++) {
+         resample(baseline, baselineResample, random);
+         resample(candidate, candidateResample, random);
+         changes[i] = median(candidateResample) / median(baselineResample) - 1;
+      }
+      Arrays.sort(changes);
+      double tail = (1 - CONFIDENCE_LEVEL) / 2;
+      int lowIndex = (int) Math.floor(tail * (BOOTSTRAP_RESAMPLES - 1));
+      int highIndex = (int) Math.ceil((1 - tail) * (BOOTSTRAP_RESAMPLES - 1));
+      return new double[] {changes[lowIndex], changes[highIndex]};
+   }
+
+   private static void resample(double[] samples, double[] resample, SplittableRandom random) {
+      for (int i = 0; i < resample.length; i++) {
+         resample[i] = samples[random.nextInt(samples.length)];
+      }
+   }
+
+   /**
+    * Sorts the samples in place and returns their median.
+    * @param samples The samples.
+    * @return The median of the samples.
+    */
+   public static double median(double[] samples) {
+      Arrays.sort(samples);
+      int middle = samples.length / 2;
+      if (samples.length % 2 == 1) return samples[middle];
+      return (samples[middle - 1] + samples[middle]) / 2;
+   }
+
+   /**
+    * Two sided Mann-Whitney U test using the normal approximation with tie correction.
+    * @param first The first group of samples.
+    * @param second The second group of samples.
+    * @return The p-value of the hypothesis that both groups come from the same distribution.
+    */
+   public static double mannWhitneyPValue(double[] first, double[] second) {
+      int n1 = first.length;
+      int n2 = second.length;
+      int n = n1 + n2;
+      double[] values = new double[n];
+      boolean[] fromFirst = new boolean[n];
+      Integer[] order = new Integer[n];
+      for (int i = 0; i < n; i++) {
+         values[i] = i < n1 ? first[i] : second[i - n1];
+         fromFirst[i] = i < n1;
+         order[i] = i;
+      }
+      Arrays.sort(order, (a, b) -> Double.compare(values[a], values[b]));
+
+      // Tied values share the average of their ranks
+      double rankSumFirst = 0;
+      double tieCorrection = 0;
+      int start = 0;
+      while (start < n) {
+         int end = start;
+         while (end + 1 < n && values[order[end + 1]] == values[order[start]]) end++;
+         double averageRank = (start + end) / 2.0 + 1;
+         for (int i = start; i <= end; i++) {
+            if (fromFirst[order[i]]) rankSumFirst += averageRank;
+         }
+         int ties = end - start + 1;
+         tieCorrection += (double) ties * ties * ties - ties;
+         start = end + 1;
+      }
+
+      double u = rankSumFirst - n1 * (n1 + 1) / 2.0;
+      double meanU = n1 * (double) n2 / 2;
+      double varianceU = n1 * (double) n2 / 12 * ((n + 1) - tieCorrection / ((double) n * (n - 1)));
+      if (varianceU <= 0) return 1;
+      // continuity correction
+      double z = (Math.abs(u - meanU) - 0.5) / Math.sqrt(varianceU);
+      if (z < 0) return 1;
+      return Math.min(1, 2 * (1 - standardNormalCdf(z)));
+   }
+
+   /**
+    * Approximates the standard normal cumulative distribution function with the Abramowitz and Stegun formula 7.1.26.
+    * @param z The value to evaluate.
+    * @return The probability of a standard normal variable being at most z.
+    */
+   public static double standardNormalCdf(double z) {
+      double x = Math.abs(z) / Math.sqrt(2);
+      double t = 1 / (1 + 0.3275911 * x);
+      double erf = 1 - t * (0.254829592 + t * (-0.284496736 + t * (1.421413741 + t * (-1.453152027 + t * 1.061405429)))) * Math.exp(-x * x);
+      return z >= 0 ? (1 + erf) / 2 : (1 - erf) / 2;
+   }
+}
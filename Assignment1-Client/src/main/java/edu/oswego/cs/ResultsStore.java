@@ -0,0 +1,157 @@
+package edu.oswego.cs;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the csv files of every client run in a local results directory so runs can be compared later. Runs are stored
+ * under results/&lt;host_jvm_transport_config&gt;/&lt;start time&gt;/ together with a run.properties file describing the
+ * host, JVM and test configuration the run was made with.
+ */
+public class ResultsStore {
+
+   public static final String METADATA_FILE_NAME = "run.properties";
+
+   private static final DateTimeFormatter RUN_ID_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+   /**
+    * Describes the environment and configuration of the current run.
+    * @param serverHost The host of the server the tests ran against.
+    * @param transportType The transport type the tests ran over.
+    * @param sampleSize The number of samples collected for each test.
+    * @param sessionOptions The options the server was asked to use.
+    * @param stageTiming Whether stage timing was enabled.
+    * @return The run metadata.
+    */
+   public static Properties describeRun(String serverHost, String transportType, int sampleSize, SessionOptions sessionOptions, boolean stageTiming) {
+      Properties metadata = new Properties();
+      metadata.setProperty("host", localHostName());
+      metadata.setProperty("server", serverHost);
+      metadata.setProperty("transport", transportType);
+      metadata.setProperty("sampleSize", Integer.toString(sampleSize));
+      metadata.setProperty("sessionOptions", sessionOptions.toString());
+      metadata.setProperty("stageTiming", Boolean.toString(stageTiming));
+      metadata.setProperty("java.version", System.getProperty("java.version"));
+      metadata.setProperty("java.vm.name", System.getProperty("java.vm.name"));
+      metadata.setProperty("os", System.getProperty("os.name") + " " + System.getProperty("os.version") + " " + System.getProperty("os.arch"));
+      metadata.setProperty("processors", Integer.toString(Runtime.getRuntime().availableProcessors()));
+      metadata.setProperty("started", LocalDateTime.now().toString());
+      return metadata;
+   }
+
+   /**
+    * Copies the csv files of a finished run into the results directory together with its metadata.
+    * @param resultsDir The root of the results directory.
+    * @param metadata The metadata of the run.
+    * @param csvFileNames The csv files written by the run.
+    * @return The directory the run was stored in.
+    * @throws IOException If the run could not be stored.
+    */
+   public static Path storeRun(Path resultsDir, Properties metadata, List<String> csvFileNames) throws IOException {
+      Path runDir = resultsDir.resolve(configKey(metadata)).resolve(LocalDateTime.now().format(RUN_ID_FORMAT));
+      Files.createDirectories(runDir);
+      for (String csvFileName : csvFileNames) {
+         Path csvFile = Path.of(csvFileName);
+         if (Files.exists(csvFile)) Files.copy(csvFile, runDir.resolve(csvFile.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+      }
+      try (Writer writer = Files.newBufferedWriter(runDir.resolve(METADATA_FILE_NAME))) {
+         metadata.store(writer, "Assignment1 client run");
+      }
+      return runDir;
+   }
+
+   /**
+    * Runs with the same host, JVM and configuration share a key so they end up next to each other.
+    * @param metadata The metadata of the run.
+    * @return The directory name for the configuration of the run.
+    */
+   public static String configKey(Properties metadata) {
+      String config = metadata.getProperty("server") + "|" + metadata.getProperty("sampleSize") + "|"
+            + metadata.getProperty("sessionOptions") + "|" + metadata.getProperty("stageTiming") + "|"
+            + metadata.getProperty("java.vm.name");
+      String key = metadata.getProperty("host") + "_java" + metadata.getProperty("java.version") + "_"
+            + metadata.getProperty("transport") + "_" + Integer.toHexString(config.hashCode());
+      return key.replaceAll("[^A-Za-z0-9._-]", "-");
+   }
+
+   /**
+    * @param resultsDir The root of the results directory.
+    * @return Every stored run directory, oldest first within each configuration.
+    * @throws IOException If the results directory could not be read.
+    */
+   public static List<Path> listRuns(Path resultsDir) throws IOException {
+      List<Path> runDirs = new ArrayList<>();
+      if (!Files.isDirectory(resultsDir)) return runDirs;
+      try (Stream<Path> metadataFiles = Files.find(resultsDir, 3, (path, attributes) -> path.getFileName().toString().equals(METADATA_FILE_NAME))) {
+         metadataFiles.map(Path::getParent).sorted().forEach(runDirs::add);
+      }
+      return runDirs;
+   }
+
+   public static Properties loadMetadata(Path runDir) throws IOException {
+      Properties metadata = new Properties();
+      Path metadataFile = runDir.resolve(METADATA_FILE_NAME);
+      if (Files.exists(metadataFile)) {
+         try (Reader reader = Files.newBufferedReader(metadataFile)) {
+            metadata.load(reader);
+         }
+      }
+      return metadata;
+   }
+
+   /**
+    * Loads the valid samples of every test of a run. A test is a csv file together with the value of its test column,
+    * for example "TCPRTT 64B".
+    * @param runDir The directory of the run.
+    * @return The samples of each test in the order they appear.
+    * @throws IOException If one of the csv files could not be read.
+    */
+   public static Map<String, double[]> loadSamples(Path runDir) throws IOException {
+      Map<String, List<Double>> samplesByTest = new LinkedHashMap<>();
+      List<Path> csvFiles = new ArrayList<>();
+      try (Stream<Path> files = Files.list(runDir)) {
+         files.filter(path -> path.getFileName().toString().endsWith(".csv")).sorted().forEach(csvFiles::add);
+      }
+      for (Path csvFile : csvFiles) {
+         String fileName = csvFile.getFileName().toString();
+         String testFile = fileName.substring(0, fileName.length() - ".csv".length());
+         try (BufferedReader reader = Files.newBufferedReader(csvFile)) {
+            // skip the header
+            String line = reader.readLine();
+            while ((line = reader.readLine()) != null) {
+               String[] columns = line.split(",");
+               if (columns.length < 3 || !Boolean.parseBoolean(columns[2])) continue;
+               String test = columns.length > 3 ? testFile + " " + columns[3] : testFile;
+               samplesByTest.computeIfAbsent(test, key -> new ArrayList<>()).add(Double.parseDouble(columns[1]));
+            }
+         }
+      }
+      Map<String, double[]> samples = new LinkedHashMap<>();
+      for (Map.Entry<String, List<Double>> entry : samplesByTest.entrySet()) {
+         samples.put(entry.getKey(), entry.getValue().stream().mapToDouble(Double::doubleValue).toArray());
+      }
+      return samples;
+   }
+
+   private static String localHostName() {
+      try {
+         return InetAddress.getLocalHost().getHostName();
+      } catch (IOException e) {
+         return "unknown-host";
+      }
+   }
+}
@@ -0,0 +1,171 @@
+package edu.oswego.cs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The optional behaviour the client asks the server for. The options are chosen by the client and sent to the server
+ * right after the xor key was generated. The server echoes them back so the client knows they were understood.
+ */
+public class SessionOptions {
+
+   private static final int TIMESTAMP_ECHO_FLAG = 1;
+
+   private static final int WORKLOAD_FLAG = 2;
+
+   private static final int DEFAULT_DEFLATE_LEVEL = 6;
+
+   // The server appends its receive and send timestamps to every RTT reply
+   private final boolean timestampEcho;
+
+   // A workload run follows the throughput tests on stream transports
+   private final boolean workload;
+
+   // The codec throughput messages are compressed with before they are encrypted
+   private final int compressionCodec;
+
+   private final int compressionLevel;
+
+   // The cipher every message is encrypted with
+   private final int cipher;
+
+   public SessionOptions(boolean timestampEcho, boolean workload, int compressionCodec, int compressionLevel, int cipher) {
+      this.timestampEcho = timestampEcho;
+      this.workload = workload;
+      this.compressionCodec = compressionCodec;
+      this.compressionLevel = compressionLevel;
+      this.cipher = cipher;
+   }
+
+   /**
+    * Reads the options from the system properties the client was started with. Compression is selected with
+    * -Dcompression=none, lz or deflate[:level], the cipher with -Dcipher=xor, aes-gcm or chacha20-poly1305 and a
+    * workload run with -Dworkload=&lt;file&gt;.
+    * @return The options selected by the user.
+    */
+   public static SessionOptions fromSystemProperties() {
+      String compression = System.getProperty("compression", "none");
+      String[] codecAndLevel = compression.split(":", 2);
+      int compressionCodec;
+      int compressionLevel = 0;
+      switch (codecAndLevel[0]) {
+         case "none":
+            compressionCodec = PayloadCodec.NONE;
+            break;
+         case "lz":
+            compressionCodec = PayloadCodec.LZ;
+            break;
+         case "deflate":
+            compressionCodec = PayloadCodec.DEFLATE;
+            compressionLevel = codecAndLevel.length > 1 ? Integer.parseInt(codecAndLevel[1]) : DEFAULT_DEFLATE_LEVEL;
+            break;
+         default:
+            throw new IllegalArgumentException("Unknown compression: " + compression);
+      }
+      return new SessionOptions(Boolean.getBoolean("timestampEcho"), System.getProperty("workload") != null, compressionCodec,
+            compressionLevel, parseCipher(System.getProperty("cipher", "xor")));
+   }
+
+   private static int parseCipher(String cipherName) {
+      switch (cipherName) {
+         case "xor":
+            return MessageCipher.XOR;
+         case "aes-gcm":
+            return MessageCipher.AES_GCM;
+         case "chacha20-poly1305":
+            return MessageCipher.CHACHA20_POLY1305;
+         default:
+            throw new IllegalArgumentException("Unknown cipher: " + cipherName);
+      }
+   }
+
+   public boolean isTimestampEcho() {
+      return timestampEcho;
+   }
+
+   public boolean isWorkload() {
+      return workload;
+   }
+
+   /**
+    * @return A new codec for the throughput messages or null if they are not compressed.
+    */
+   public PayloadCodec createCodec() {
+      return PayloadCodec.create(compressionCodec, compressionLevel);
+   }
+
+   /**
+    * @param xorKey The key generated by the handshake.
+    * @param initiator True for the client.
+    * @return The cipher used for every message of the session.
+    */
+   public MessageCipher createCipher(XorKey xorKey, boolean initiator) {
+      return MessageCipher.create(cipher, xorKey, initiator);
+   }
+
+   /**
+    * Sends the options to the server and waits for them to be echoed back.
+    * @param transport The transport connected to the server.
+    * @return True if the server echoed the same options.
+    * @throws IOException If the options could not be exchanged.
+    */
+   public boolean send(Transport transport) throws IOException {
+      ByteBuffer optionsBuffer = ByteBuffer.allocate(4 * Integer.BYTES);
+      optionsBuffer.putInt(toFlags()).putInt(compressionCodec).putInt(compressionLevel).putInt(cipher).flip();
+      transport.send(optionsBuffer);
+      optionsBuffer.clear();
+      transport.receive(optionsBuffer);
+      return optionsBuffer.getInt(0) == toFlags() && optionsBuffer.getInt(4) == compressionCodec
+            && optionsBuffer.getInt(8) == compressionLevel && optionsBuffer.getInt(12) == cipher;
+   }
+
+   /**
+    * Receives the options chosen by the client and echoes them back.
+    * @param transport The transport connected to the client.
+    * @return The options chosen by the client.
+    * @throws IOException If the options could not be exchanged.
+    */
+   public static SessionOptions receive(Transport transport) throws IOException {
+      ByteBuffer optionsBuffer = ByteBuffer.allocate(4 * Integer.BYTES);
+      transport.receive(optionsBuffer);
+      optionsBuffer.flip();
+      transport.send(optionsBuffer);
+      int flags = optionsBuffer.getInt(0);
+      return new SessionOptions((flags & TIMESTAMP_ECHO_FLAG) != 0, (flags & WORKLOAD_FLAG) != 0, optionsBuffer.getInt(4),
+            optionsBuffer.getInt(8), optionsBuffer.getInt(12));
+   }
+
+   private int toFlags() {
+      int flags = 0;
+      if (timestampEcho) flags |= TIMESTAMP_ECHO_FLAG;
+      if (workload) flags |= WORKLOAD_FLAG;
+      return flags;
+   }
+
+   @Override
+   public String toString() {
+      String compression;
+      switch (compressionCodec) {
+         case PayloadCodec.DEFLATE:
+            compression = "deflate:" + compressionLevel;
+            break;
+         case PayloadCodec.LZ:
+            compression = "lz";
+            break;
+         default:
+            compression = "none";
+      }
+      String cipherName;
+      switch (cipher) {
+         case MessageCipher.AES_GCM:
+            cipherName = "aes-gcm";
+            break;
+         case MessageCipher.CHACHA20_POLY1305:
+            cipherName = "chacha20-poly1305";
+            break;
+         default:
+            cipherName = "xor";
+      }
+      return "timestampEcho=" + timestampEcho + ",workload=" + workload + ",compression=" + compression + ",cipher=" + cipherName;
+   }
+}
@@ -0,0 +1,98 @@
+package edu.oswego.cs;
+
+import java.io.FileWriter;
+
+/**
+ * Records how long each stage of a RTT sample took. Timestamps are stored into arrays that are allocated up front,
+ * so recording a sample does not allocate and does not disturb the measurement. When the timer is disabled every
+ * method returns immediately.
+ */
+public class StageTimer {
+
+   public static final int ENCODE = 0;
+   public static final int SEND = 1;
+   public static final int FIRST_BYTE = 2;
+   public static final int LAST_BYTE = 3;
+   public static final int DECODE = 4;
+   public static final int VALIDATE = 5;
+   public static final int NUM_STAGES = 6;
+
+   private static final String[] STAGE_NAMES = {"encode", "send", "first byte", "last byte", "decode", "validate"};
+
+   private final boolean enabled;
+
+   private final int capacity;
+
+   // marks[0] is the start of the sample, marks[stage + 1] the end of the stage
+   private final long[] marks = new long[NUM_STAGES + 1];
+
+   // The duration of a stage for a sample is stored at stage * capacity + sample
+   private final long[] durations;
+
+   private int numSamples;
+
+   /**
+    * @param enabled Whether stage timestamps should be recorded.
+    * @param capacity The maximum number of samples recorded between resets.
+    */
+   public StageTimer(boolean enabled, int capacity) {
+      this.enabled = enabled;
+      this.capacity = capacity;
+      durations = enabled ? new long[NUM_STAGES * capacity] : new long[0];
+   }
+
+   public boolean isEnabled() {
+      return enabled;
+   }
+
+   /**
+    * Marks the start of a sample, which is also the start of the encode stage.
+    */
+   public void begin() {
+      if (enabled) marks[0] = System.nanoTime();
+   }
+
+   /**
+    * Marks the end of a stage at the current time.
+    * @param stage The stage that ended.
+    */
+   public void mark(int stage) {
+      if (enabled) marks[stage + 1] = System.nanoTime();
+   }
+
+   /**
+    * Marks the end of a stage with a timestamp that was taken elsewhere, for example by the transport.
+    * @param stage The stage that ended.
+    * @param nanoTime The System.nanoTime value at the end of the stage.
+    */
+   public void mark(int stage, long nanoTime) {
+      if (enabled) marks[stage + 1] = nanoTime;
+   }
+
+   /**
+    * Stores the stage durations of the current sample. Samples beyond the capacity are dropped.
+    */
+   public void end() {
+      if (!enabled || numSamples == capacity) return;
+      for (int stage = 0; stage < NUM_STAGES; stage++) {
+         durations[stage * capacity + numSamples] = marks[stage + 1] - marks[stage];
+      }
+      numSamples++;
+   }
+
+   /**
+    * Logs the distribution of every stage over the recorded samples and resets the timer for the next test.
+    * @param testName The name of the test the samples belong to.
+    * @param logFileWriter The file writer used to log the distributions.
+    */
+   public void reportAndReset(String testName, FileWriter logFileWriter) {
+      if (!enabled || numSamples == 0) return;
+      PerformanceClient.log("Stage breakdown in nanoseconds for " + testName + " over " + numSamples + " samples", logFileWriter);
+      for (int stage = 0; stage < NUM_STAGES; stage++) {
+         int from = stage * capacity;
+         String summary = Distributions.summarize(durations, from, from + numSamples);
+         PerformanceClient.log(String.format("%-10s ", STAGE_NAMES[stage]) + summary, logFileWriter);
+      }
+      numSamples = 0;
+   }
+}
@@ -0,0 +1,45 @@
+package edu.oswego.cs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A message transport that the measurement and handler methods run over. Implementations exist for TCP and Unix domain
+ * stream sockets, UDP datagrams and an in-JVM pipe so the same test plan can be run over each of them.
+ */
+public interface Transport extends Closeable {
+
+   /**
+    * Sends the bytes between the position and the limit of the buffer. The position of the buffer is advanced to its limit.
+    * @param buffer The buffer holding the message.
+    * @throws IOException If the message could not be sent.
+    */
+   void send(ByteBuffer buffer) throws IOException;
+
+   /**
+    * Receives a message into the buffer starting at its position. Stream transports fill the buffer up to its limit,
+    * datagram transports store a single datagram.
+    * @param buffer The buffer the message is stored in.
+    * @return The number of bytes received, or -1 on the server side of a datagram transport once the test is over.
+    * @throws IOException If the message could not be received or the peer closed the transport.
+    */
+   int receive(ByteBuffer buffer) throws IOException;
+
+   /**
+    * Enables recording the time at which the first bytes of a received message arrived. Disabled by default so the
+    * extra System.nanoTime call is only paid when stage timing is requested.
+    * @param enabled Whether the first byte timestamp should be recorded.
+    */
+   void setFirstByteTimestamps(boolean enabled);
+
+   /**
+    * @return The System.nanoTime value at which the first bytes of the last received message arrived.
+    */
+   long getFirstByteNanoTime();
+
+   /**
+    * @return The name of the transport, used for naming csv files and log messages.
+    */
+   String getName();
+}
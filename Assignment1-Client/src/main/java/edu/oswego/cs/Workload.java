@@ -0,0 +1,129 @@
+package edu.oswego.cs;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.SplittableRandom;
+
+/**
+ * A mix of messages to run against the server, for example mostly small control messages with the occasional bulk
+ * payload. A workload is read from a properties file:
+ * <ul>
+ * <li>requests, the number of requests in the run, 10000 by default</li>
+ * <li>requestSize, the distribution of the request sizes in bytes, see WorkloadDistribution</li>
+ * <li>responseRatio, the size of the response relative to its request, 1 by default</li>
+ * <li>thinkTime, the distribution of the time between two requests being due in microseconds, none by default so
+ * every request is due at the start and the run measures a saturated connection</li>
+ * <li>maxSize, the size in bytes requests and responses are capped at, 65536 by default</li>
+ * <li>window, the number of requests that may wait for their response at the same time, 16 by default</li>
+ * <li>windowBytes, the response bytes that may be unread at the same time, 65536 by default. It has to stay below
+ * what the connection buffers, the in-process ring holds 65536 bytes, or the server could block on a full connection
+ * while the client blocks sending the next request</li>
+ * <li>seed, the seed of the random generator so a workload sends the same sizes on every run, 1 by default</li>
+ * </ul>
+ * Sizes are rounded up to whole longs because the ciphers work on longs.
+ */
+public class Workload {
+
+   private static final long NANOS_PER_MICRO = 1_000L;
+
+   private final Path file;
+
+   private final int numRequests;
+
+   private final WorkloadDistribution requestSizes;
+
+   private final double responseRatio;
+
+   private final WorkloadDistribution thinkTimes;
+
+   private final int maxBytes;
+
+   private final int window;
+
+   private final int windowBytes;
+
+   private final SplittableRandom random;
+
+   private Workload(Path file, int numRequests, WorkloadDistribution requestSizes, double responseRatio, WorkloadDistribution thinkTimes,
+         int maxBytes, int window, int windowBytes, long seed) {
+      this.file = file;
+      this.numRequests = numRequests;
+      this.requestSizes = requestSizes;
+      this.responseRatio = responseRatio;
+      this.thinkTimes = thinkTimes;
+      this.maxBytes = WorkloadPayload.roundToLongs(maxBytes);
+      this.window = Math.max(1, window);
+      this.windowBytes = windowBytes;
+      random = new SplittableRandom(seed);
+   }
+
+   /**
+    * @param file The properties file describing the workload.
+    * @return The workload.
+    * @throws IOException If the file or the file of an empirical distribution could not be read.
+    */
+   public static Workload load(Path file) throws IOException {
+      Properties properties = new Properties();
+      try (Reader reader = Files.newBufferedReader(file)) {
+         properties.load(reader);
+      }
+      String requestSize = properties.getProperty("requestSize");
+      if (requestSize == null) throw new IllegalArgumentException("The workload " + file + " has no requestSize");
+      return new Workload(file, Integer.parseInt(properties.getProperty("requests", "10000")),
+            WorkloadDistribution.parse(requestSize), Double.parseDouble(properties.getProperty("responseRatio", "1")),
+            WorkloadDistribution.parse(properties.getProperty("thinkTime", "fixed:0")),
+            Integer.parseInt(properties.getProperty("maxSize", "65536")), Integer.parseInt(properties.getProperty("window", "16")),
+            Integer.parseInt(properties.getProperty("windowBytes", "65536")), Long.parseLong(properties.getProperty("seed", "1")));
+   }
+
+   public int getNumRequests() {
+      return numRequests;
+   }
+
+   public int getMaxBytes() {
+      return maxBytes;
+   }
+
+   public int getWindow() {
+      return window;
+   }
+
+   public int getWindowBytes() {
+      return windowBytes;
+   }
+
+   /**
+    * @return The size of the next request in bytes.
+    */
+   public int nextRequestBytes() {
+      return capSize(requestSizes.sample(random));
+   }
+
+   /**
+    * @param requestBytes The size of the request the response belongs to.
+    * @return The size of its response in bytes.
+    */
+   public int responseBytes(int requestBytes) {
+      return capSize(Math.round(requestBytes * responseRatio));
+   }
+
+   /**
+    * @return The time between the next request being due and the one after it in nanoseconds.
+    */
+   public long nextThinkNanos() {
+      return thinkTimes.sample(random) * NANOS_PER_MICRO;
+   }
+
+   private int capSize(long numBytes) {
+      return WorkloadPayload.roundToLongs((int) Math.min(numBytes, maxBytes));
+   }
+
+   @Override
+   public String toString() {
+      return file + " (" + numRequests + " requests, requestSize=" + requestSizes + ", responseRatio=" + responseRatio
+            + ", thinkTime=" + thinkTimes + "us, maxSize=" + maxBytes + ", window=" + window + ", windowBytes=" + windowBytes + ")";
+   }
+}
@@ -0,0 +1,146 @@
+package edu.oswego.cs;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * A distribution message sizes or think times are drawn from. Distributions are written as
+ * <ul>
+ * <li>fixed:value</li>
+ * <li>uniform:min:max, both inclusive</li>
+ * <li>lognormal:median:sigma, where sigma is the standard deviation of the logarithm</li>
+ * <li>exponential:mean</li>
+ * <li>empirical:file, a file with one value per line optionally followed by its weight, # starts a comment</li>
+ * </ul>
+ * Everything a distribution needs is set up when it is parsed, so drawing a value does not allocate and can be done
+ * between the samples of a test.
+ */
+public class WorkloadDistribution {
+
+   private static final int FIXED = 0;
+   private static final int UNIFORM = 1;
+   private static final int LOGNORMAL = 2;
+   private static final int EXPONENTIAL = 3;
+   private static final int EMPIRICAL = 4;
+
+   private final String spec;
+
+   private final int kind;
+
+   // The value of fixed, the minimum of uniform, the log of the median of lognormal and the mean of exponential
+   private final double first;
+
+   // The maximum of uniform and sigma of lognormal
+   private final double second;
+
+   // The values of empirical and the running sum of their weights
+   private final long[] values;
+
+   private final double[] cumulativeWeights;
+
+   private WorkloadDistribution(String spec, int kind, double first, double second, long[] values, double[] cumulativeWeights) {
+      this.spec = spec;
+      this.kind = kind;
+      this.first = first;
+      this.second = second;
+      this.values = values;
+      this.cumulativeWeights = cumulativeWeights;
+   }
+
+   /**
+    * @param spec The distribution as described in the class comment.
+    * @return The distribution.
+    * @throws IOException If the file of an empirical distribution could not be read.
+    */
+   public static WorkloadDistribution parse(String spec) throws IOException {
+      String[] parts = spec.trim().split(":", 2);
+      String[] parameters = parts.length > 1 ? parts[1].split(":") : new String[0];
+      switch (parts[0]) {
+         case "fixed":
+            return new WorkloadDistribution(spec, FIXED, Double.parseDouble(parameters[0]), 0, null, null);
+         case "uniform":
+            return new WorkloadDistribution(spec, UNIFORM, Double.parseDouble(parameters[0]), Double.parseDouble(parameters[1]), null, null);
+         case "lognormal":
+            return new WorkloadDistribution(spec, LOGNORMAL, Math.log(Double.parseDouble(parameters[0])), Double.parseDouble(parameters[1]), null, null);
+         case "exponential":
+            return new WorkloadDistribution(spec, EXPONENTIAL, Double.parseDouble(parameters[0]), 0, null, null);
+         case "empirical":
+            return parseEmpirical(spec, Path.of(parts[1]));
+         default:
+            throw new IllegalArgumentException("Unknown distribution: " + spec);
+      }
+   }
+
+   private static WorkloadDistribution parseEmpirical(String spec, Path file) throws IOException {
+      List<Long> entries = new ArrayList<>();
+      List<Double> weights = new ArrayList<>();
+      for (String line : Files.readAllLines(file)) {
+         int commentStart = line.indexOf('#');
+         if (commentStart >= 0) line = line.substring(0, commentStart);
+         line = line.trim();
+         if (line.isEmpty()) continue;
+         String[] fields = line.split("[\\s,]+");
+         entries.add(Long.parseLong(fields[0]));
+         weights.add(fields.length > 1 ? Double.parseDouble(fields[1]) : 1);
+      }
+      if (entries.isEmpty()) throw new IllegalArgumentException("The empirical distribution " + file + " has no values");
+      long[] values = new long[entries.size()];
+      double[] cumulativeWeights = new double[entries.size()];
+      double total = 0;
+      for (int i = 0; i < values.length; i++) {
+         values[i] = entries.get(i);
+         total += weights.get(i);
+         cumulativeWeights[i] = total;
+      }
+      return new WorkloadDistribution(spec, EMPIRICAL, 0, 0, values, cumulativeWeights);
+   }
+
+   /**
+    * Draws a value.
+    * @param random The random generator of the workload.
+    * @return The value, never negative.
+    */
+   public long sample(SplittableRandom random) {
+      double value;
+      switch (kind) {
+         case UNIFORM:
+            value = first + Math.floor(random.nextDouble() * (second - first + 1));
+            break;
+         case LOGNORMAL:
+            value = Math.exp(first + second * random.nextGaussian());
+            break;
+         case EXPONENTIAL:
+            value = -first * Math.log(1 - random.nextDouble());
+            break;
+         case EMPIRICAL:
+            return values[findWeight(random.nextDouble() * cumulativeWeights[cumulativeWeights.length - 1])];
+         default:
+            value = first;
+      }
+      return Math.max(0, Math.round(value));
+   }
+
+   // The first index whose cumulative weight is above the target
+   private int findWeight(double target) {
+      int low = 0;
+      int high = cumulativeWeights.length - 1;
+      while (low < high) {
+         int middle = (low + high) >>> 1;
+         if (cumulativeWeights[middle] <= target) {
+            low = middle + 1;
+         } else {
+            high = middle;
+         }
+      }
+      return low;
+   }
+
+   @Override
+   public String toString() {
+      return spec;
+   }
+}
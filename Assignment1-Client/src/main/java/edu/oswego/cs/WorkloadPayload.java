@@ -0,0 +1,74 @@
+package edu.oswego.cs;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The framing and content of workload messages. Every message of a workload run starts with a plaintext header holding
+ * the size of the encrypted payload that follows and the size of the reply the client expects. A header with a request
+ * size of 0 ends the run. The payloads hold the same triangular numbers as the other tests, so both sides can fill and
+ * validate them by comparing with a pattern that is generated once.
+ */
+public class WorkloadPayload {
+
+   public static final int HEADER_BYTES = 2 * Integer.BYTES;
+
+   // Triangular numbers up to the largest payload, in the byte order the messages use
+   private final ByteBuffer pattern;
+
+   /**
+    * @param maxBytes The size of the largest payload.
+    */
+   public WorkloadPayload(int maxBytes) {
+      pattern = ByteBuffer.allocateDirect(roundToLongs(maxBytes));
+      for (int i = 0; i < pattern.capacity() / Long.BYTES; i++) {
+         long num = i;
+         pattern.putLong(i * Long.BYTES, (num * (num + 1)) >>> 2);
+      }
+   }
+
+   /**
+    * The ciphers work on whole longs, so payload sizes are rounded up to them.
+    * @param numBytes The requested size.
+    * @return The size rounded up to a multiple of eight bytes, at least eight.
+    */
+   public static int roundToLongs(int numBytes) {
+      return Math.max(Long.BYTES, (numBytes + Long.BYTES - 1) & -Long.BYTES);
+   }
+
+   /**
+    * Copies the first bytes of the pattern into a buffer without changing its position or limit.
+    * @param buffer The buffer the payload is written to.
+    * @param index The index the payload starts at.
+    * @param numBytes The size of the payload.
+    */
+   public void fill(ByteBuffer buffer, int index, int numBytes) {
+      buffer.put(index, pattern, 0, numBytes);
+   }
+
+   /**
+    * Compares a received payload with the pattern. The position and limit of the buffer are changed.
+    * @param buffer The buffer holding the payload.
+    * @param index The index the payload starts at.
+    * @param numBytes The size of the payload.
+    * @return True if the payload holds the expected numbers.
+    */
+   public boolean matches(ByteBuffer buffer, int index, int numBytes) {
+      buffer.limit(index + numBytes).position(index);
+      pattern.limit(numBytes).position(0);
+      boolean matches = buffer.mismatch(pattern) < 0;
+      // fill reads up to the limit of the pattern
+      pattern.clear();
+      return matches;
+   }
+
+   /**
+    * Writes the header of a message.
+    * @param buffer The buffer the message starts at index 0 of.
+    * @param requestBytes The size of the payload before encryption, 0 to end the run.
+    * @param responseBytes The size of the reply payload before encryption.
+    */
+   public static void putHeader(ByteBuffer buffer, int requestBytes, int responseBytes) {
+      buffer.putInt(0, requestBytes);
+      buffer.putInt(Integer.BYTES, responseBytes);
+   }
+}
@@ -0,0 +1,22 @@
+plugins {
+   id("java")
+   id("application")
+}
+
+repositories {
+
+}
+
+dependencies {
+
+}
+
+application {
+   mainClass = "edu.oswego.cs.Proxy"
+}
+
+tasks.withType<Jar> {
+    manifest {
+        attributes["Main-Class"] = "edu.oswego.cs.Proxy"
+    }
+}
\ No newline at end of file
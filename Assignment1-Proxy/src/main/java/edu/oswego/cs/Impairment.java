@@ -0,0 +1,130 @@
+package edu.oswego.cs;
+
+import java.util.SplittableRandom;
+
+/**
+ * The impairments applied to one direction of the proxy and the random state deciding them. Every direction has its
+ * own instance seeded from the same seed, so a scenario plays out the same way on every run.
+ * <p>
+ * The impairments are read from system properties:
+ * <ul>
+ * <li>delay and jitter in milliseconds, the jitter is added uniformly in [-jitter, jitter]</li>
+ * <li>loss as a probability, or burst:p:r for a Gilbert model that turns lossy with probability p and recovers with
+ * probability r per packet, losing every packet while lossy</li>
+ * <li>reorder as the probability that a packet skips the delay and overtakes the packets before it</li>
+ * <li>duplicate as the probability that a packet is sent twice</li>
+ * <li>rate in bits per second and burst in bytes for the token bucket, rate 0 for no limit</li>
+ * <li>queue as the longest time in milliseconds a datagram waits for the token bucket before it is dropped</li>
+ * <li>seed for the random decisions</li>
+ * </ul>
+ * Loss, reordering and duplication only apply to datagrams. Dropping or reordering bytes of a TCP stream would corrupt
+ * it, so streams only see the delay, the jitter without reordering and the bandwidth limit.
+ */
+public class Impairment {
+
+   private static final long NANOS_PER_MILLI = 1_000_000L;
+
+   private final long delayNanos;
+
+   private final long jitterNanos;
+
+   private final double lossProbability;
+
+   // Gilbert model, only used when burstLoss is set
+   private final boolean burstLoss;
+
+   private final double enterLossyProbability;
+
+   private final double leaveLossyProbability;
+
+   private boolean lossy;
+
+   private final double reorderProbability;
+
+   private final double duplicateProbability;
+
+   private final TokenBucket tokenBucket;
+
+   private final SplittableRandom random;
+
+   private Impairment(long delayNanos, long jitterNanos, String loss, double reorderProbability, double duplicateProbability,
+         TokenBucket tokenBucket, long seed) {
+      this.delayNanos = delayNanos;
+      this.jitterNanos = jitterNanos;
+      if (loss.startsWith("burst:")) {
+         String[] probabilities = loss.split(":");
+         burstLoss = true;
+         enterLossyProbability = Double.parseDouble(probabilities[1]);
+         leaveLossyProbability = Double.parseDouble(probabilities[2]);
+         lossProbability = 0;
+      } else {
+         burstLoss = false;
+         enterLossyProbability = 0;
+         leaveLossyProbability = 0;
+         lossProbability = Double.parseDouble(loss);
+      }
+      this.reorderProbability = reorderProbability;
+      this.duplicateProbability = duplicateProbability;
+      this.tokenBucket = tokenBucket;
+      random = new SplittableRandom(seed);
+   }
+
+   /**
+    * Reads the impairments from the system properties the proxy was started with.
+    * @param direction The index of the direction, used to give every direction its own random sequence.
+    * @return The impairments of the direction.
+    */
+   public static Impairment fromSystemProperties(int direction) {
+      long delayNanos = (long) (Double.parseDouble(System.getProperty("delay", "0")) * NANOS_PER_MILLI);
+      long jitterNanos = (long) (Double.parseDouble(System.getProperty("jitter", "0")) * NANOS_PER_MILLI);
+      String loss = System.getProperty("loss", "0");
+      double reorder = Double.parseDouble(System.getProperty("reorder", "0"));
+      double duplicate = Double.parseDouble(System.getProperty("duplicate", "0"));
+      long rate = Long.parseLong(System.getProperty("rate", "0"));
+      int burst = Integer.parseInt(System.getProperty("burst", "65536"));
+      long queueNanos = (long) (Double.parseDouble(System.getProperty("queue", "100")) * NANOS_PER_MILLI);
+      long seed = Long.parseLong(System.getProperty("seed", "1"));
+      return new Impairment(delayNanos, jitterNanos, loss, reorder, duplicate, new TokenBucket(rate, burst, queueNanos),
+            seed * 31 + direction);
+   }
+
+   /**
+    * @return True if the next datagram is lost.
+    */
+   public boolean isLost() {
+      if (burstLoss) {
+         lossy = lossy ? random.nextDouble() >= leaveLossyProbability : random.nextDouble() < enterLossyProbability;
+         return lossy;
+      }
+      return lossProbability > 0 && random.nextDouble() < lossProbability;
+   }
+
+   /**
+    * @return True if the next datagram is sent twice.
+    */
+   public boolean isDuplicated() {
+      return duplicateProbability > 0 && random.nextDouble() < duplicateProbability;
+   }
+
+   /**
+    * Decides when a packet is delivered.
+    * @param numBytes The size of the packet.
+    * @param nowNanos The System.nanoTime value the packet arrived at.
+    * @param datagram Whether the packet is a datagram, which may be dropped by the token bucket and reordered.
+    * @return The System.nanoTime value the packet is delivered at, or -1 if the token bucket dropped it.
+    */
+   public long deliveryTime(int numBytes, long nowNanos, boolean datagram) {
+      long departure = tokenBucket.take(numBytes, nowNanos, datagram);
+      if (departure < 0) return -1;
+      if (datagram && reorderProbability > 0 && random.nextDouble() < reorderProbability) return departure;
+      long jitter = jitterNanos > 0 ? random.nextLong(-jitterNanos, jitterNanos + 1) : 0;
+      return departure + Math.max(0, delayNanos + jitter);
+   }
+
+   @Override
+   public String toString() {
+      String loss = burstLoss ? "burst:" + enterLossyProbability + ":" + leaveLossyProbability : Double.toString(lossProbability);
+      return "delay=" + delayNanos / 1e6 + "ms jitter=" + jitterNanos / 1e6 + "ms loss=" + loss + " reorder=" + reorderProbability
+            + " duplicate=" + duplicateProbability + " rateLimited=" + tokenBucket.isLimited();
+   }
+}
@@ -0,0 +1,536 @@
+package edu.oswego.cs;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Sits between the client and the server and impairs the traffic between them, so the tests can be run against a
+ * slow, lossy or congested link without touching the network configuration of the machine.
+ * <p>
+ * The proxy accepts TCP connections and UDP datagrams on the same port, forwards them to the server and forwards the
+ * replies back. Everything runs on one thread: a selector waits for packets and a timer wheel holds every packet until
+ * its delivery time. The impairments are read from system properties, see Impairment.
+ */
+public class Proxy {
+
+   private static final int CLIENT_TO_SERVER = 0;
+   private static final int SERVER_TO_CLIENT = 1;
+
+   private static final String[] DIRECTION_NAMES = {"client->server", "server->client"};
+
+   private static final int MAX_DATAGRAM_BYTES = 65535;
+
+   private static final int STREAM_CHUNK_BYTES = 16384;
+
+   // Buffer sizes of the packet pools, a packet uses the smallest one it fits in
+   private static final int[] BUFFER_SIZES = {2048, STREAM_CHUNK_BYTES, MAX_DATAGRAM_BYTES};
+
+   // Reading from a stream stops while this many of its bytes are held back, so a slow link pushes back on the sender
+   private static final int MAX_QUEUED_STREAM_BYTES = 4 << 20;
+
+   // Datagrams read per wakeup, so one busy channel cannot starve the others and the timer wheel
+   private static final int MAX_DATAGRAMS_PER_READ = 64;
+
+   private static final long TICK_NANOS = 100_000L;
+
+   // 6.5 seconds per turn of the wheel, longer delays go around more than once
+   private static final int WHEEL_SLOTS = 1 << 16;
+
+   private static final long NANOS_PER_MILLI = 1_000_000L;
+
+   private final InetSocketAddress serverAddress;
+
+   private final Impairment[] impairments = {Impairment.fromSystemProperties(CLIENT_TO_SERVER),
+         Impairment.fromSystemProperties(SERVER_TO_CLIENT)};
+
+   private final TimerWheel timerWheel = new TimerWheel(TICK_NANOS, WHEEL_SLOTS);
+
+   private final Selector selector;
+
+   private final ServerSocketChannel tcpListener;
+
+   private final DatagramChannel udpListener;
+
+   // The channel every client talks to the server through, so the server can tell the clients apart
+   private final Map<SocketAddress, DatagramChannel> upstreamChannels = new HashMap<>();
+
+   @SuppressWarnings({"unchecked", "rawtypes"})
+   private final ArrayDeque<Packet>[] packetPools = new ArrayDeque[BUFFER_SIZES.length];
+
+   private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_BYTES);
+
+   // Counters per direction
+   private final long[] numForwarded = new long[2];
+
+   private final long[] numBytesForwarded = new long[2];
+
+   private final long[] numLost = new long[2];
+
+   private final long[] numQueueDropped = new long[2];
+
+   private final long[] numDuplicated = new long[2];
+
+   // Datagrams the socket buffer had no room for
+   private final long[] numSendDropped = new long[2];
+
+   private long lastPrintedTotal = -1;
+
+   private Proxy(int listenPort, InetSocketAddress serverAddress) throws IOException {
+      this.serverAddress = serverAddress;
+      for (int i = 0; i < packetPools.length; i++) {
+         packetPools[i] = new ArrayDeque<>();
+      }
+      selector = Selector.open();
+      tcpListener = ServerSocketChannel.open();
+      tcpListener.bind(new InetSocketAddress(listenPort));
+      tcpListener.configureBlocking(false);
+      tcpListener.register(selector, SelectionKey.OP_ACCEPT);
+      udpListener = DatagramChannel.open();
+      udpListener.bind(new InetSocketAddress(listenPort));
+      udpListener.configureBlocking(false);
+      udpListener.register(selector, SelectionKey.OP_READ);
+   }
+
+   public static void main(String[] args) {
+      int listenPort;
+      if (args.length > 0) {
+         listenPort = Integer.parseInt(args[0]);
+      } else {
+         listenPort = 26911;
+      }
+
+      String serverHost;
+      if (args.length > 1) {
+         serverHost = args[1];
+      } else {
+         serverHost = "localhost";
+      }
+
+      int serverPort;
+      if (args.length > 2) {
+         serverPort = Integer.parseInt(args[2]);
+      } else {
+         // The default port of the server
+         serverPort = 26910;
+      }
+
+      // Seconds between the statistics, 0 to only print them when the proxy stops
+      long statsIntervalNanos = (long) (Double.parseDouble(System.getProperty("statsInterval", "10")) * 1e9);
+
+      Proxy proxy = null;
+      try {
+         proxy = new Proxy(listenPort, new InetSocketAddress(serverHost, serverPort));
+      } catch (IOException e) {
+         System.err.println("There was an I/O exception when opening the listening channels on port " + listenPort);
+         e.printStackTrace();
+         System.exit(1);
+      }
+
+      System.out.println("Forwarding port " + listenPort + " to " + serverHost + ":" + serverPort);
+      for (int direction = CLIENT_TO_SERVER; direction <= SERVER_TO_CLIENT; direction++) {
+         System.out.println(DIRECTION_NAMES[direction] + ": " + proxy.impairments[direction]);
+      }
+      Proxy stoppedProxy = proxy;
+      Runtime.getRuntime().addShutdownHook(new Thread(stoppedProxy::printStatistics));
+
+      try {
+         proxy.run(statsIntervalNanos);
+      } catch (IOException e) {
+         System.err.println("There was an I/O exception in the event loop of the proxy");
+         e.printStackTrace();
+         System.exit(1);
+      }
+   }
+
+   /**
+    * Forwards packets until the proxy is killed.
+    * @param statsIntervalNanos The time between two printouts of the statistics, 0 for none.
+    */
+   private void run(long statsIntervalNanos) throws IOException {
+      long nextStats = System.nanoTime() + statsIntervalNanos;
+      while (true) {
+         long now = System.nanoTime();
+         long waitNanos = timerWheel.nanosUntilNextDeadline(now);
+         if (statsIntervalNanos > 0 && (waitNanos < 0 || nextStats - now < waitNanos)) {
+            waitNanos = Math.max(0, nextStats - now);
+         }
+         if (waitNanos < 0) {
+            selector.select();
+         } else if (waitNanos < NANOS_PER_MILLI) {
+            // select only waits whole milliseconds, spin for the last one before the deadline so delays stay accurate
+            // to a tick
+            selector.selectNow();
+            if (selector.selectedKeys().isEmpty()) Thread.onSpinWait();
+         } else {
+            selector.select(waitNanos / NANOS_PER_MILLI);
+         }
+
+         Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+         while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            handleKey(key);
+         }
+
+         now = System.nanoTime();
+         timerWheel.advance(now);
+         if (statsIntervalNanos > 0 && now - nextStats >= 0) {
+            printStatistics();
+            nextStats = now + statsIntervalNanos;
+         }
+      }
+   }
+
+   private void handleKey(SelectionKey key) throws IOException {
+      if (!key.isValid()) return;
+      if (key.channel() == tcpListener) {
+         acceptConnection();
+      } else if (key.channel() == udpListener) {
+         receiveFromClients();
+      } else if (key.attachment() instanceof Endpoint) {
+         Endpoint endpoint = (Endpoint) key.attachment();
+         if (key.isReadable()) endpoint.readingPipe.read();
+         if (key.isValid() && key.isWritable()) endpoint.writingPipe.flush();
+      } else {
+         receiveFromServer((DatagramChannel) key.channel(), (SocketAddress) key.attachment());
+      }
+   }
+
+   /**
+    * Accepts a client and connects it to the server. Connecting blocks, which is fine for a server on the same
+    * network, and a server that is down closes the client connection right away.
+    */
+   private void acceptConnection() throws IOException {
+      SocketChannel client = tcpListener.accept();
+      if (client == null) return;
+      SocketChannel server;
+      try {
+         server = SocketChannel.open(serverAddress);
+      } catch (IOException e) {
+         System.err.println("Could not connect to the server at " + serverAddress + ": " + e);
+         client.close();
+         return;
+      }
+      Endpoint clientEndpoint = new Endpoint(client);
+      Endpoint serverEndpoint = new Endpoint(server);
+      StreamPipe upstream = new StreamPipe(clientEndpoint, serverEndpoint, CLIENT_TO_SERVER);
+      StreamPipe downstream = new StreamPipe(serverEndpoint, clientEndpoint, SERVER_TO_CLIENT);
+      upstream.reverse = downstream;
+      downstream.reverse = upstream;
+      clientEndpoint.register(upstream, downstream);
+      serverEndpoint.register(downstream, upstream);
+   }
+
+   private void receiveFromClients() throws IOException {
+      for (int i = 0; i < MAX_DATAGRAMS_PER_READ; i++) {
+         receiveBuffer.clear();
+         SocketAddress client = udpListener.receive(receiveBuffer);
+         if (client == null) return;
+         DatagramChannel upstream = upstreamChannels.get(client);
+         if (upstream == null) {
+            upstream = DatagramChannel.open();
+            upstream.configureBlocking(false);
+            upstream.register(selector, SelectionKey.OP_READ, client);
+            upstreamChannels.put(client, upstream);
+         }
+         receiveBuffer.flip();
+         impairDatagram(CLIENT_TO_SERVER, upstream, serverAddress);
+      }
+   }
+
+   private void receiveFromServer(DatagramChannel upstream, SocketAddress client) throws IOException {
+      for (int i = 0; i < MAX_DATAGRAMS_PER_READ; i++) {
+         receiveBuffer.clear();
+         if (upstream.receive(receiveBuffer) == null) return;
+         receiveBuffer.flip();
+         impairDatagram(SERVER_TO_CLIENT, udpListener, client);
+      }
+   }
+
+   /**
+    * Decides the fate of the datagram in the receive buffer and schedules its delivery unless it is lost.
+    */
+   private void impairDatagram(int direction, DatagramChannel channel, SocketAddress target) {
+      Impairment impairment = impairments[direction];
+      if (impairment.isLost()) {
+         numLost[direction]++;
+         return;
+      }
+      int numCopies = impairment.isDuplicated() ? 2 : 1;
+      if (numCopies == 2) numDuplicated[direction]++;
+      long now = System.nanoTime();
+      for (int i = 0; i < numCopies; i++) {
+         long deliveryTime = impairment.deliveryTime(receiveBuffer.remaining(), now, true);
+         if (deliveryTime < 0) {
+            numQueueDropped[direction]++;
+            continue;
+         }
+         Packet packet = acquirePacket(receiveBuffer.remaining());
+         packet.buffer.put(receiveBuffer.duplicate()).flip();
+         packet.direction = direction;
+         packet.channel = channel;
+         packet.target = target;
+         timerWheel.schedule(packet, deliveryTime);
+      }
+   }
+
+   private void sendDatagram(Packet packet) {
+      try {
+         int numBytes = packet.buffer.remaining();
+         if (packet.channel.send(packet.buffer, packet.target) == 0) {
+            numSendDropped[packet.direction]++;
+         } else {
+            numForwarded[packet.direction]++;
+            numBytesForwarded[packet.direction] += numBytes;
+         }
+      } catch (IOException e) {
+         // Like a router, an unreachable destination only loses the datagram
+         numSendDropped[packet.direction]++;
+      }
+      releasePacket(packet);
+   }
+
+   private Packet acquirePacket(int numBytes) {
+      int sizeClass = 0;
+      while (BUFFER_SIZES[sizeClass] < numBytes) {
+         sizeClass++;
+      }
+      Packet packet = packetPools[sizeClass].poll();
+      if (packet == null) packet = new Packet(sizeClass);
+      packet.buffer.clear();
+      return packet;
+   }
+
+   private void releasePacket(Packet packet) {
+      packet.channel = null;
+      packet.target = null;
+      packet.pipe = null;
+      packetPools[packet.sizeClass].push(packet);
+   }
+
+   private void printStatistics() {
+      long total = numForwarded[0] + numForwarded[1] + numLost[0] + numLost[1] + numQueueDropped[0] + numQueueDropped[1];
+      // Nothing new to report while the proxy is idle
+      if (total == lastPrintedTotal) return;
+      lastPrintedTotal = total;
+      for (int direction = CLIENT_TO_SERVER; direction <= SERVER_TO_CLIENT; direction++) {
+         System.out.println(DIRECTION_NAMES[direction] + ": forwarded " + numForwarded[direction] + " packets "
+               + numBytesForwarded[direction] + " bytes, lost " + numLost[direction] + ", queue dropped "
+               + numQueueDropped[direction] + ", duplicated " + numDuplicated[direction] + ", send dropped "
+               + numSendDropped[direction]);
+      }
+   }
+
+   /**
+    * A datagram or a chunk of a stream waiting on the timer wheel for its delivery time.
+    */
+   private final class Packet extends TimerWheel.Timeout {
+
+      private final int sizeClass;
+
+      private final ByteBuffer buffer;
+
+      private int direction;
+
+      // Where a datagram goes
+      private DatagramChannel channel;
+
+      private SocketAddress target;
+
+      // Where a stream chunk goes
+      private StreamPipe pipe;
+
+      Packet(int sizeClass) {
+         this.sizeClass = sizeClass;
+         buffer = ByteBuffer.allocateDirect(BUFFER_SIZES[sizeClass]);
+      }
+
+      @Override
+      protected void fire(long nowNanos) {
+         if (pipe != null) {
+            pipe.deliver(this);
+         } else {
+            sendDatagram(this);
+         }
+      }
+   }
+
+   /**
+    * One socket of a proxied TCP connection. It is the source of one pipe and the destination of the other, and its
+    * interest in reading and writing depends on both.
+    */
+   private final class Endpoint {
+
+      private final SocketChannel channel;
+
+      private SelectionKey key;
+
+      private StreamPipe readingPipe;
+
+      private StreamPipe writingPipe;
+
+      Endpoint(SocketChannel channel) {
+         this.channel = channel;
+      }
+
+      void register(StreamPipe readingPipe, StreamPipe writingPipe) throws IOException {
+         this.readingPipe = readingPipe;
+         this.writingPipe = writingPipe;
+         channel.configureBlocking(false);
+         // The proxy delays on purpose, Nagle would add its own delay on top
+         channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+         key = channel.register(selector, SelectionKey.OP_READ, this);
+      }
+
+      void updateInterest() {
+         if (!key.isValid()) return;
+         int ops = 0;
+         if (readingPipe.isReading()) ops |= SelectionKey.OP_READ;
+         if (writingPipe.isWriteBlocked()) ops |= SelectionKey.OP_WRITE;
+         key.interestOps(ops);
+      }
+   }
+
+   /**
+    * One direction of a proxied TCP connection. The bytes are read in chunks and every chunk waits on the timer wheel
+    * like a datagram, but never earlier than the chunk before it, so the stream keeps its order.
+    */
+   private final class StreamPipe {
+
+      private final Endpoint source;
+
+      private final Endpoint destination;
+
+      private final int direction;
+
+      private StreamPipe reverse;
+
+      // Chunks that are due but did not fit into the socket buffer of the destination yet
+      private final ArrayDeque<Packet> dueChunks = new ArrayDeque<>();
+
+      // Bytes read from the source and not yet written to the destination
+      private int numQueuedBytes;
+
+      private long lastDeliveryTime = Long.MIN_VALUE;
+
+      private boolean sourceClosed;
+
+      private boolean outputShutdown;
+
+      private boolean closed;
+
+      StreamPipe(Endpoint source, Endpoint destination, int direction) {
+         this.source = source;
+         this.destination = destination;
+         this.direction = direction;
+      }
+
+      boolean isReading() {
+         return !sourceClosed && numQueuedBytes < MAX_QUEUED_STREAM_BYTES;
+      }
+
+      boolean isWriteBlocked() {
+         return !dueChunks.isEmpty();
+      }
+
+      void read() {
+         long now = System.nanoTime();
+         try {
+            while (isReading()) {
+               receiveBuffer.clear().limit(STREAM_CHUNK_BYTES);
+               int numBytes = source.channel.read(receiveBuffer);
+               if (numBytes == 0) break;
+               if (numBytes < 0) {
+                  sourceClosed = true;
+                  finishIfDrained();
+                  break;
+               }
+               receiveBuffer.flip();
+               Packet chunk = acquirePacket(numBytes);
+               chunk.buffer.put(receiveBuffer).flip();
+               chunk.direction = direction;
+               chunk.pipe = this;
+               numQueuedBytes += numBytes;
+               lastDeliveryTime = Math.max(lastDeliveryTime, impairments[direction].deliveryTime(numBytes, now, false));
+               timerWheel.schedule(chunk, lastDeliveryTime);
+            }
+         } catch (IOException e) {
+            close();
+            return;
+         }
+         source.updateInterest();
+      }
+
+      void deliver(Packet chunk) {
+         if (closed) {
+            releasePacket(chunk);
+            return;
+         }
+         dueChunks.add(chunk);
+         if (dueChunks.size() == 1) flush();
+      }
+
+      void flush() {
+         try {
+            while (!dueChunks.isEmpty()) {
+               Packet chunk = dueChunks.peek();
+               destination.channel.write(chunk.buffer);
+               if (chunk.buffer.hasRemaining()) break;
+               dueChunks.poll();
+               numQueuedBytes -= chunk.buffer.limit();
+               numForwarded[direction]++;
+               numBytesForwarded[direction] += chunk.buffer.limit();
+               releasePacket(chunk);
+            }
+            finishIfDrained();
+         } catch (IOException e) {
+            close();
+            return;
+         }
+         destination.updateInterest();
+         source.updateInterest();
+      }
+
+      /**
+       * Passes the end of the stream on once every byte before it was delivered, and closes the connection once both
+       * directions ended.
+       */
+      private void finishIfDrained() throws IOException {
+         if (!sourceClosed || numQueuedBytes > 0 || outputShutdown) return;
+         outputShutdown = true;
+         destination.channel.shutdownOutput();
+         if (reverse.outputShutdown) close();
+      }
+
+      private void close() {
+         closeChannel(source.channel);
+         closeChannel(destination.channel);
+         for (StreamPipe pipe : new StreamPipe[] {this, reverse}) {
+            pipe.closed = true;
+            while (!pipe.dueChunks.isEmpty()) {
+               releasePacket(pipe.dueChunks.poll());
+            }
+         }
+      }
+   }
+
+   private static void closeChannel(SocketChannel channel) {
+      try {
+         channel.close();
+      } catch (IOException e) {
+         System.err.println("There was an I/O exception when closing a connection: " + e);
+      }
+   }
+}
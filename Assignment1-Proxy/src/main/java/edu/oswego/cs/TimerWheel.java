@@ -0,0 +1,147 @@
+package edu.oswego.cs;
+
+/**
+ * A hashed timer wheel. Scheduling and firing a timeout takes constant time no matter how many are pending, which lets
+ * the proxy hold a delayed copy of every packet in flight at high packet rates.
+ * <p>
+ * Time is split into ticks and every tick maps to one slot of the wheel. A timeout fires in the tick its deadline falls
+ * in, so up to one tick early, and a deadline that already passed fires with the next advance. Timeouts further away
+ * than one turn of the wheel stay in their slot until their tick comes around. Timeouts in the same tick fire in the
+ * order they were scheduled, so byte streams keep their order. The timeouts themselves are the list nodes, so
+ * scheduling does not allocate when they are reused.
+ */
+public class TimerWheel {
+
+   /**
+    * A task that can be scheduled on the wheel. A timeout can only be scheduled once at a time.
+    */
+   public abstract static class Timeout {
+
+      private Timeout next;
+
+      private long deadlineTick;
+
+      /**
+       * Called when the timeout fired.
+       * @param nowNanos The System.nanoTime value of the tick the timeout fired in.
+       */
+      protected abstract void fire(long nowNanos);
+   }
+
+   private final long tickNanos;
+
+   private final long startNanos;
+
+   private final Timeout[] heads;
+
+   private final Timeout[] tails;
+
+   private final int mask;
+
+   // The next tick that has not been processed yet
+   private long currentTick;
+
+   private int numPending;
+
+   /**
+    * @param tickNanos The length of a tick.
+    * @param numSlots The number of slots, rounded up to a power of two.
+    */
+   public TimerWheel(long tickNanos, int numSlots) {
+      this.tickNanos = tickNanos;
+      int size = Integer.highestOneBit(Math.max(1, numSlots - 1)) << 1;
+      heads = new Timeout[size];
+      tails = new Timeout[size];
+      mask = size - 1;
+      startNanos = System.nanoTime();
+   }
+
+   /**
+    * Schedules a timeout. Deadlines in the past fire with the next advance.
+    * @param timeout The timeout to schedule.
+    * @param deadlineNanos The System.nanoTime value the timeout should fire at.
+    */
+   public void schedule(Timeout timeout, long deadlineNanos) {
+      long tick = Math.max(currentTick, Math.floorDiv(deadlineNanos - startNanos, tickNanos));
+      int slot = (int) (tick & mask);
+      timeout.deadlineTick = tick;
+      timeout.next = null;
+      if (tails[slot] == null) {
+         heads[slot] = timeout;
+      } else {
+         tails[slot].next = timeout;
+      }
+      tails[slot] = timeout;
+      numPending++;
+   }
+
+   /**
+    * Fires every timeout whose tick has passed.
+    * @param nowNanos The current System.nanoTime value.
+    */
+   public void advance(long nowNanos) {
+      long targetTick = Math.floorDiv(nowNanos - startNanos, tickNanos);
+      while (currentTick <= targetTick && numPending > 0) {
+         int slot = (int) (currentTick & mask);
+         long tick = currentTick;
+         Timeout timeout = heads[slot];
+         heads[slot] = null;
+         tails[slot] = null;
+         // Timeouts scheduled by the fired ones land in a later tick
+         currentTick++;
+         long tickNanoTime = startNanos + tick * tickNanos;
+         while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.deadlineTick <= tick) {
+               numPending--;
+               timeout.next = null;
+               timeout.fire(tickNanoTime);
+            } else {
+               // Due in a later turn of the wheel
+               numPending--;
+               reinsert(timeout, slot);
+            }
+            timeout = next;
+         }
+      }
+      currentTick = Math.max(currentTick, targetTick + 1);
+   }
+
+   /**
+    * Finds the first tick a pending timeout fires in by scanning the slots from the current tick, at most one turn of
+    * the wheel ahead. When every pending timeout is further away, the end of that turn is returned instead.
+    * @param nowNanos The current System.nanoTime value.
+    * @return The number of nanoseconds until the first tick with a due timeout, or -1 if nothing is pending.
+    */
+   public long nanosUntilNextDeadline(long nowNanos) {
+      if (numPending == 0) return -1;
+      long tick = currentTick;
+      long lastTick = currentTick + mask;
+      while (tick <= lastTick && !hasDueTimeout(heads[(int) (tick & mask)], tick)) {
+         tick++;
+      }
+      return Math.max(0, startNanos + tick * tickNanos - nowNanos);
+   }
+
+   public int getNumPending() {
+      return numPending;
+   }
+
+   private static boolean hasDueTimeout(Timeout timeout, long tick) {
+      for (; timeout != null; timeout = timeout.next) {
+         if (timeout.deadlineTick <= tick) return true;
+      }
+      return false;
+   }
+
+   private void reinsert(Timeout timeout, int slot) {
+      timeout.next = null;
+      if (tails[slot] == null) {
+         heads[slot] = timeout;
+      } else {
+         tails[slot].next = timeout;
+      }
+      tails[slot] = timeout;
+      numPending++;
+   }
+}
@@ -0,0 +1,54 @@
+package edu.oswego.cs;
+
+/**
+ * Limits the bandwidth of one direction of the proxy with a token bucket. Packets that find the bucket empty are
+ * queued behind the packets before them instead of being dropped, like on the outgoing queue of a router, until the
+ * queue would hold more than the maximum queueing delay.
+ * <p>
+ * The bucket is kept as the theoretical arrival time of the generic cell rate algorithm, which is equivalent to
+ * counting tokens but does not need a timer to refill them.
+ */
+public class TokenBucket {
+
+   private static final double NANOS_PER_SECOND = 1e9;
+
+   private final double nanosPerByte;
+
+   private final long burstNanos;
+
+   private final long maxQueueNanos;
+
+   // The time at which the bucket is full again if nothing else is sent
+   private long theoreticalArrivalTime = Long.MIN_VALUE;
+
+   /**
+    * @param bitsPerSecond The rate the bucket refills with, 0 for no limit.
+    * @param burstBytes The size of the bucket.
+    * @param maxQueueNanos The longest a packet may wait for tokens before it is dropped.
+    */
+   public TokenBucket(long bitsPerSecond, int burstBytes, long maxQueueNanos) {
+      nanosPerByte = bitsPerSecond > 0 ? Byte.SIZE * NANOS_PER_SECOND / bitsPerSecond : 0;
+      burstNanos = (long) (burstBytes * nanosPerByte);
+      this.maxQueueNanos = maxQueueNanos;
+   }
+
+   public boolean isLimited() {
+      return nanosPerByte > 0;
+   }
+
+   /**
+    * Takes the tokens for a packet.
+    * @param numBytes The size of the packet.
+    * @param nowNanos The System.nanoTime value the packet arrived at.
+    * @param mayDrop Whether the packet is dropped when the queue is full, streams are never dropped.
+    * @return The System.nanoTime value the packet leaves the bucket at, or -1 if it was dropped.
+    */
+   public long take(int numBytes, long nowNanos, boolean mayDrop) {
+      if (!isLimited()) return nowNanos;
+      if (theoreticalArrivalTime == Long.MIN_VALUE) theoreticalArrivalTime = nowNanos;
+      long departure = Math.max(nowNanos, theoreticalArrivalTime - burstNanos);
+      if (mayDrop && departure - nowNanos > maxQueueNanos) return -1;
+      theoreticalArrivalTime = Math.max(theoreticalArrivalTime, departure) + (long) (numBytes * nanosPerByte);
+      return departure;
+   }
+}
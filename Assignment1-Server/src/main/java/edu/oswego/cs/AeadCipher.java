@@ -0,0 +1,155 @@
+package edu.oswego.cs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.spec.AlgorithmParameterSpec;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Authenticated encryption with javax.crypto, either AES-GCM or ChaCha20-Poly1305. One Cipher instance is kept for the
+ * whole session and initialized again for every message with a new nonce.
+ * <p>
+ * The nonce is made of the direction of the message and its sequence number, which counts the messages sent in that
+ * direction. The sequence number is sent after the tag and authenticated as part of the associated data, so messages
+ * that are lost or reordered, as datagrams can be, do not put the two sides out of step. A window of the sequence
+ * numbers received last rejects replayed messages.
+ */
+public class AeadCipher implements MessageCipher {
+
+   private static final int NONCE_BYTES = 12;
+
+   private static final int TAG_BYTES = 16;
+
+   private static final int SEQUENCE_BYTES = Long.BYTES;
+
+   // Messages older than the newest received one by this many are rejected as replays
+   private static final int REPLAY_WINDOW = Long.SIZE;
+
+   private final String name;
+
+   private final Cipher cipher;
+
+   private final SecretKeySpec key;
+
+   private final boolean gcm;
+
+   private final int sendDirection;
+
+   private final int receiveDirection;
+
+   private final byte[] nonce = new byte[NONCE_BYTES];
+
+   // Writes into nonce, kept so building the nonce of a message does not allocate
+   private final ByteBuffer nonceBuffer = ByteBuffer.wrap(nonce);
+
+   private long sendSequence;
+
+   // The newest sequence number received, -1 before the first message
+   private long highestReceived = -1;
+
+   // Bit i is set if the message highestReceived - i was received
+   private long receivedMask;
+
+   private AeadCipher(String name, String transformation, String keyAlgorithm, XorKey xorKey, boolean initiator) {
+      this.name = name;
+      gcm = transformation.startsWith("AES/GCM");
+      sendDirection = initiator ? 0 : 1;
+      receiveDirection = initiator ? 1 : 0;
+      try {
+         cipher = Cipher.getInstance(transformation);
+         key = new SecretKeySpec(deriveKey(xorKey, name), keyAlgorithm);
+      } catch (GeneralSecurityException e) {
+         throw new IllegalStateException(name + " is not available on this JVM", e);
+      }
+   }
+
+   public static AeadCipher aesGcm(XorKey xorKey, boolean initiator) {
+      return new AeadCipher("aes-gcm", "AES/GCM/NoPadding", "AES", xorKey, initiator);
+   }
+
+   public static AeadCipher chaCha20Poly1305(XorKey xorKey, boolean initiator) {
+      return new AeadCipher("chacha20-poly1305", "ChaCha20-Poly1305", "ChaCha20", xorKey, initiator);
+   }
+
+   @Override
+   public void encrypt(ByteBuffer buffer) throws IOException {
+      long sequence = sendSequence++;
+      crypt(Cipher.ENCRYPT_MODE, sendDirection, sequence, buffer);
+      int limit = buffer.limit();
+      buffer.limit(limit + SEQUENCE_BYTES).putLong(limit, sequence);
+   }
+
+   @Override
+   public void decrypt(ByteBuffer buffer) throws IOException {
+      if (buffer.remaining() < TAG_BYTES + SEQUENCE_BYTES) throw new IOException("A message is too short to hold a tag");
+      int sequenceIndex = buffer.limit() - SEQUENCE_BYTES;
+      long sequence = buffer.getLong(sequenceIndex);
+      if (isReplay(sequence)) throw new IOException("Message " + sequence + " was replayed or is too old");
+      buffer.limit(sequenceIndex);
+      crypt(Cipher.DECRYPT_MODE, receiveDirection, sequence, buffer);
+      markReceived(sequence);
+   }
+
+   @Override
+   public int overhead() {
+      return TAG_BYTES + SEQUENCE_BYTES;
+   }
+
+   @Override
+   public String getName() {
+      return name;
+   }
+
+   private void crypt(int mode, int direction, long sequence, ByteBuffer buffer) throws IOException {
+      nonceBuffer.putInt(0, direction).putLong(Integer.BYTES, sequence);
+      // The specs copy the nonce, so unlike the rest of the state they cannot be reused between messages
+      AlgorithmParameterSpec nonceSpec = gcm ? new GCMParameterSpec(TAG_BYTES * Byte.SIZE, nonce) : new IvParameterSpec(nonce);
+      int start = buffer.position();
+      // The output view shares the memory of the buffer, the cipher supports writing over its own input
+      ByteBuffer output = buffer.duplicate();
+      output.limit(output.capacity());
+      try {
+         cipher.init(mode, key, nonceSpec);
+         // The nonce holds the sequence number, authenticating it keeps a forged one from being accepted
+         cipher.updateAAD(nonce);
+         int outputBytes = cipher.doFinal(buffer, output);
+         buffer.limit(start + outputBytes).position(start);
+      } catch (AEADBadTagException e) {
+         throw new IOException("Message " + sequence + " failed authentication", e);
+      } catch (GeneralSecurityException e) {
+         throw new IOException("Could not " + (mode == Cipher.ENCRYPT_MODE ? "encrypt" : "decrypt") + " message " + sequence + " with " + name, e);
+      }
+   }
+
+   private boolean isReplay(long sequence) {
+      if (sequence < 0) return true;
+      if (sequence > highestReceived) return false;
+      long age = highestReceived - sequence;
+      return age >= REPLAY_WINDOW || (receivedMask & (1L << age)) != 0;
+   }
+
+   private void markReceived(long sequence) {
+      if (sequence > highestReceived) {
+         long shift = sequence - highestReceived;
+         receivedMask = shift >= REPLAY_WINDOW ? 1 : (receivedMask << shift) | 1;
+         highestReceived = sequence;
+      } else {
+         receivedMask |= 1L << (highestReceived - sequence);
+      }
+   }
+
+   // Hashes the handshake key with the cipher name into a 256 bit key
+   private static byte[] deriveKey(XorKey xorKey, String name) throws GeneralSecurityException {
+      MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+      sha256.update(ByteBuffer.allocate(Long.BYTES).putLong(xorKey.getKey()).array());
+      sha256.update(name.getBytes(StandardCharsets.US_ASCII));
+      return sha256.digest();
+   }
+}
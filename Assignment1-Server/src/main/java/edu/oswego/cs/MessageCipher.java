@@ -0,0 +1,69 @@
+package edu.oswego.cs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encrypts and decrypts messages in place. Every side of a session has its own instance that is created right after
+ * the xor key handshake and used for every message of the session. The xor key advances with every message, so both
+ * instances only stay in step as long as messages are processed in the order they were sent, except for datagrams
+ * which restart the key from their sequence number. The AEAD ciphers send the sequence number of every message along
+ * with it and stay in step when messages are lost or reordered.
+ */
+public interface MessageCipher {
+
+   int XOR = 0;
+   int AES_GCM = 1;
+   int CHACHA20_POLY1305 = 2;
+
+   /**
+    * Encrypts the bytes between the position and the limit of the buffer in place. Any authentication tag is written
+    * right after them and the limit is moved past it, so the buffer needs overhead() bytes of room after its limit.
+    * @param buffer The buffer holding the message.
+    * @throws IOException If the message could not be encrypted.
+    */
+   void encrypt(ByteBuffer buffer) throws IOException;
+
+   /**
+    * Decrypts the bytes between the position and the limit of the buffer in place and moves the limit back over the
+    * authentication tag.
+    * @param buffer The buffer holding the encrypted message and its tag.
+    * @throws IOException If the message could not be decrypted or failed authentication.
+    */
+   void decrypt(ByteBuffer buffer) throws IOException;
+
+   /**
+    * Called before a datagram is encrypted or decrypted. A cipher whose state advances with every message restarts it
+    * from the sequence number of the datagram, so lost or reordered datagrams do not put the two sides out of step.
+    * @param sequence The sequence number of the datagram, the same for a request and its reply.
+    */
+   default void beginDatagram(long sequence) {
+   }
+
+   /**
+    * @return The number of bytes encrypting adds to a message.
+    */
+   int overhead();
+
+   String getName();
+
+   /**
+    * Creates the cipher with the specified id.
+    * @param cipherId One of XOR, AES_GCM or CHACHA20_POLY1305.
+    * @param xorKey The key generated by the handshake, the other ciphers derive their key from it.
+    * @param initiator True for the client, the two sides use different nonces when they send.
+    * @return The cipher.
+    */
+   static MessageCipher create(int cipherId, XorKey xorKey, boolean initiator) {
+      switch (cipherId) {
+         case XOR:
+            return xorKey;
+         case AES_GCM:
+            return AeadCipher.aesGcm(xorKey, initiator);
+         case CHACHA20_POLY1305:
+            return AeadCipher.chaCha20Poly1305(xorKey, initiator);
+         default:
+            throw new IllegalArgumentException("Unknown cipher: " + cipherId);
+      }
+   }
+}
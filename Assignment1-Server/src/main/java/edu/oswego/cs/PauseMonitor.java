@@ -0,0 +1,277 @@
+package edu.oswego.cs;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import jdk.jfr.consumer.RecordingStream;
+
+/**
+ * Records the windows in which the JVM stopped the application, on the System.nanoTime clock the samples are measured
+ * with, so slow samples can be matched with the pauses they overlap.
+ * <p>
+ * GC pauses come from the notifications of the GarbageCollectorMXBeans. Their times only have millisecond resolution,
+ * so their windows are widened to whole milliseconds. Where JFR is available every safepoint is recorded as well with
+ * its exact window and the VM operation that caused it, which includes the stop-the-world part of every collection.
+ * JFR delivers its events about once a second, so awaitEvents has to be called before the latest pauses are queried.
+ */
+public class PauseMonitor implements AutoCloseable {
+
+   public static final int GC = 0;
+   public static final int SAFEPOINT = 1;
+
+   private static final String[] KIND_NAMES = {"gc", "safepoint"};
+
+   private static final int CAPACITY = 1 << 14;
+
+   private static final long NANOS_PER_MILLI = 1_000_000L;
+
+   // JFR flushes its events once a second by default
+   private static final long MAX_EVENT_DELAY_NANOS = 2_000_000_000L;
+
+   private final boolean enabled;
+
+   // Ring buffer of the latest pauses, the oldest are overwritten once it is full
+   private final long[] starts;
+
+   private final long[] ends;
+
+   private final int[] kinds;
+
+   private final String[] causes;
+
+   private long numPauses;
+
+   // System.nanoTime of the JVM start, to convert the uptime based times of GcInfo
+   private final long uptimeOriginNanos;
+
+   // Difference between the wall clock in nanoseconds and System.nanoTime, to convert the times of JFR events
+   private final long epochOffsetNanos;
+
+   private final List<Runnable> unsubscribers = new ArrayList<>();
+
+   private AutoCloseable safepointStream;
+
+   private volatile long lastFlushNanoTime;
+
+   private PauseMonitor(boolean enabled) {
+      this.enabled = enabled;
+      int capacity = enabled ? CAPACITY : 0;
+      starts = new long[capacity];
+      ends = new long[capacity];
+      kinds = new int[capacity];
+      causes = new String[capacity];
+      uptimeOriginNanos = System.nanoTime() - ManagementFactory.getRuntimeMXBean().getUptime() * NANOS_PER_MILLI;
+      Instant now = Instant.now();
+      epochOffsetNanos = now.getEpochSecond() * 1_000_000_000L + now.getNano() - System.nanoTime();
+   }
+
+   /**
+    * Starts recording pauses.
+    * @param enabled Whether pauses are recorded at all, a disabled monitor records nothing and costs nothing.
+    * @return The monitor.
+    */
+   public static PauseMonitor start(boolean enabled) {
+      PauseMonitor monitor = new PauseMonitor(enabled);
+      if (!enabled) return monitor;
+      for (GarbageCollectorMXBean gcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+         if (!(gcBean instanceof NotificationEmitter)) continue;
+         NotificationEmitter emitter = (NotificationEmitter) gcBean;
+         NotificationListener listener = (notification, handback) -> monitor.onGcNotification(notification);
+         emitter.addNotificationListener(listener, null, null);
+         monitor.unsubscribers.add(() -> {
+            try {
+               emitter.removeNotificationListener(listener);
+            } catch (ListenerNotFoundException e) {
+               // already removed
+            }
+         });
+      }
+      try {
+         monitor.safepointStream = SafepointStream.open(monitor);
+      } catch (LinkageError | RuntimeException e) {
+         System.err.println("JFR is not available, only GC pauses are recorded: " + e);
+      }
+      return monitor;
+   }
+
+   public boolean isEnabled() {
+      return enabled;
+   }
+
+   public boolean isRecordingSafepoints() {
+      return safepointStream != null;
+   }
+
+   /**
+    * Waits until the JFR events up to the specified time were delivered, for at most two seconds.
+    * @param nanoTime The System.nanoTime value the events have to be delivered up to.
+    */
+   public void awaitEvents(long nanoTime) {
+      if (safepointStream == null) return;
+      long deadline = System.nanoTime() + MAX_EVENT_DELAY_NANOS;
+      while (lastFlushNanoTime - nanoTime < 0 && System.nanoTime() - deadline < 0) {
+         try {
+            Thread.sleep(10);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+         }
+      }
+   }
+
+   /**
+    * @param kind GC or SAFEPOINT.
+    * @param from The System.nanoTime value the window starts at.
+    * @param to The System.nanoTime value the window ends at.
+    * @return The number of nanoseconds pauses of the kind overlapped the window.
+    */
+   public synchronized long pauseNanos(int kind, long from, long to) {
+      long total = 0;
+      for (int i = oldestPause(); i < numPauses; i++) {
+         int index = i % CAPACITY;
+         if (kinds[index] == kind) total += overlap(index, from, to);
+      }
+      return total;
+   }
+
+   /**
+    * @param kind GC or SAFEPOINT.
+    * @param from The System.nanoTime value the window starts at.
+    * @param to The System.nanoTime value the window ends at.
+    * @return The number of pauses of the kind that overlapped the window.
+    */
+   public synchronized int countPauses(int kind, long from, long to) {
+      int count = 0;
+      for (int i = oldestPause(); i < numPauses; i++) {
+         int index = i % CAPACITY;
+         if (kinds[index] == kind && overlap(index, from, to) > 0) count++;
+      }
+      return count;
+   }
+
+   /**
+    * @param from The System.nanoTime value the window starts at.
+    * @param to The System.nanoTime value the window ends at.
+    * @return The pauses that overlapped the window with their causes and lengths, or null if there were none.
+    */
+   public synchronized String describeOverlap(long from, long to) {
+      StringBuilder description = null;
+      for (int i = oldestPause(); i < numPauses; i++) {
+         int index = i % CAPACITY;
+         if (overlap(index, from, to) == 0) continue;
+         if (description == null) {
+            description = new StringBuilder();
+         } else {
+            description.append(", ");
+         }
+         description.append(KIND_NAMES[kinds[index]]).append(' ').append(causes[index])
+               .append(String.format(" %.3fms", (ends[index] - starts[index]) / 1e6));
+      }
+      return description == null ? null : description.toString();
+   }
+
+   /**
+    * @param from The System.nanoTime value the window starts at.
+    * @param to The System.nanoTime value the window ends at.
+    * @return The number and total length of the pauses of each kind within the window.
+    */
+   public String describeWindow(long from, long to) {
+      StringBuilder description = new StringBuilder();
+      for (int kind = GC; kind <= SAFEPOINT; kind++) {
+         if (kind == SAFEPOINT && safepointStream == null) break;
+         if (kind > GC) description.append(", ");
+         description.append(KIND_NAMES[kind]).append(' ').append(countPauses(kind, from, to)).append(" pauses ")
+               .append(String.format("%.3fms", pauseNanos(kind, from, to) / 1e6));
+      }
+      return description.toString();
+   }
+
+   @Override
+   public void close() {
+      for (Runnable unsubscriber : unsubscribers) {
+         unsubscriber.run();
+      }
+      unsubscribers.clear();
+      if (safepointStream != null) {
+         try {
+            safepointStream.close();
+         } catch (Exception e) {
+            System.err.println("Could not close the JFR stream: " + e);
+         }
+         safepointStream = null;
+      }
+   }
+
+   private void onGcNotification(Notification notification) {
+      if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) return;
+      GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+      // The concurrent cycles of G1, ZGC and Shenandoah have their own beans but do not stop the application
+      String gcName = info.getGcName();
+      if (gcName.contains("Concurrent") || gcName.contains("Cycles")) return;
+      GcInfo gcInfo = info.getGcInfo();
+      long start = uptimeOriginNanos + gcInfo.getStartTime() * NANOS_PER_MILLI;
+      long end = uptimeOriginNanos + (gcInfo.getEndTime() + 1) * NANOS_PER_MILLI;
+      recordPause(GC, gcName + " (" + info.getGcCause() + ")", start, end);
+   }
+
+   private synchronized void recordPause(int kind, String cause, long start, long end) {
+      int index = (int) (numPauses % CAPACITY);
+      starts[index] = start;
+      ends[index] = end;
+      kinds[index] = kind;
+      causes[index] = cause;
+      numPauses++;
+   }
+
+   private int oldestPause() {
+      return (int) Math.max(0, numPauses - CAPACITY);
+   }
+
+   private long overlap(int index, long from, long to) {
+      return Math.max(0, Math.min(ends[index], to) - Math.max(starts[index], from));
+   }
+
+   private long toNanoTime(Instant instant) {
+      return instant.getEpochSecond() * 1_000_000_000L + instant.getNano() - epochOffsetNanos;
+   }
+
+   // Kept in its own class so a JVM without the jdk.jfr module fails when the stream is opened instead of when the
+   // monitor is loaded
+   private static final class SafepointStream {
+
+      static AutoCloseable open(PauseMonitor monitor) {
+         RecordingStream stream = new RecordingStream();
+         stream.enable("jdk.SafepointBegin").withThreshold(Duration.ZERO);
+         stream.enable("jdk.SafepointEnd").withThreshold(Duration.ZERO);
+         stream.enable("jdk.ExecuteVMOperation").withThreshold(Duration.ZERO);
+         // Only touched by the thread of the stream
+         Map<Long, Long> beginTimes = new HashMap<>();
+         Map<Long, String> operations = new HashMap<>();
+         stream.onEvent("jdk.SafepointBegin", event -> beginTimes.put(event.getLong("safepointId"), monitor.toNanoTime(event.getStartTime())));
+         stream.onEvent("jdk.ExecuteVMOperation", event -> {
+            if (event.getBoolean("safepoint")) operations.put(event.getLong("safepointId"), event.getString("operation"));
+         });
+         stream.onEvent("jdk.SafepointEnd", event -> {
+            long safepointId = event.getLong("safepointId");
+            Long begin = beginTimes.remove(safepointId);
+            String operation = operations.remove(safepointId);
+            if (begin != null) monitor.recordPause(SAFEPOINT, operation == null ? "unknown" : operation, begin, monitor.toNanoTime(event.getEndTime()));
+         });
+         stream.onFlush(() -> monitor.lastFlushNanoTime = System.nanoTime());
+         stream.startAsync();
+         return stream;
+      }
+   }
+}
@@ -0,0 +1,64 @@
+package edu.oswego.cs;
+
+import java.io.IOException;
+
+/**
+ * Compresses message payloads before they are encrypted. Implementations keep their state between messages so no
+ * allocation happens per message, which means a codec instance must only be used by one thread.
+ */
+public interface PayloadCodec {
+
+   int NONE = 0;
+   int DEFLATE = 1;
+   int LZ = 2;
+
+   /**
+    * Compresses a range of bytes.
+    * @param src The array holding the bytes to compress.
+    * @param srcOffset The index of the first byte to compress.
+    * @param srcLength The number of bytes to compress.
+    * @param dst The array the compressed bytes are written to, at least maxCompressedLength(srcLength) long from dstOffset.
+    * @param dstOffset The index the compressed bytes are written to.
+    * @return The number of compressed bytes.
+    */
+   int compress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset);
+
+   /**
+    * Restores bytes that were compressed by the same kind of codec.
+    * @param src The array holding the compressed bytes.
+    * @param srcOffset The index of the first compressed byte.
+    * @param srcLength The number of compressed bytes.
+    * @param dst The array the restored bytes are written to.
+    * @param dstOffset The index the restored bytes are written to.
+    * @param dstLength The number of bytes that were compressed.
+    * @throws IOException If the compressed bytes are corrupt.
+    */
+   void decompress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset, int dstLength) throws IOException;
+
+   /**
+    * @param srcLength The number of bytes to compress.
+    * @return The largest number of bytes compressing srcLength bytes can result in.
+    */
+   int maxCompressedLength(int srcLength);
+
+   String getName();
+
+   /**
+    * Creates the codec with the specified id.
+    * @param codecId One of NONE, DEFLATE or LZ.
+    * @param level The compression level, only used by DEFLATE.
+    * @return The codec or null for NONE.
+    */
+   static PayloadCodec create(int codecId, int level) {
+      switch (codecId) {
+         case DEFLATE:
+            return new DeflateCodec(level);
+         case LZ:
+            return new LZCodec();
+         case NONE:
+            return null;
+         default:
+            throw new IllegalArgumentException("Unknown compression codec: " + codecId);
+      }
+   }
+}
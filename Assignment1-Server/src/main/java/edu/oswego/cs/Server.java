@@ -1,22 +1,21 @@
 package edu.oswego.cs;
 
-import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.DatagramChannel;
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
-import java.util.concurrent.ThreadLocalRandom;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 
 public class Server {
+
+   // Only started by main, when the handlers run in the JVM of the client its own monitor covers them
+   private static PauseMonitor pauseMonitor = PauseMonitor.start(false);
+
+   private static final List<String> testNames = new ArrayList<>();
+
+   private static final List<long[]> testWindows = new ArrayList<>();
+
+   private static final int COALESCING_BUFFER_BYTES = 1 << 16;
   
    public static void main(String[] args) {
       int portNumber;
@@ -34,71 +33,172 @@ public class Server {
          sampleSize = 30;
       }
 
-      ServerSocket serverSocket = null;
-      Socket client = null;
-      DataOutputStream out = null;
-      DataInputStream in = null;
+      String transportType;
+      if (args.length > 2) {
+         transportType = args[2].toLowerCase();
+      } else {
+         // TCP tests followed by UDP tests
+         transportType = "ip";
+      }
+
+      pauseMonitor = PauseMonitor.start(Boolean.getBoolean("pauseMonitor"));
+
+      if (transportType.equals("unix")) {
+         Transport unixTransport = null;
+         try {
+            unixTransport = coalesceIO(StreamTransport.acceptUnix(portNumber));
+         } catch (IOException e) {
+            System.err.println("There was an I/O exception when connecting to the client over a unix domain socket");
+            e.printStackTrace();
+            System.exit(1);
+         }
+         serveStreamClient(unixTransport, sampleSize);
+         closeTransport(unixTransport);
+         reportPauses();
+         return;
+      }
+
+      Transport tcpTransport = null;
       try {
-         serverSocket = new ServerSocket(portNumber);
-         client = serverSocket.accept();
-         out = new DataOutputStream(client.getOutputStream());
-         in = new DataInputStream(client.getInputStream());
+         tcpTransport = coalesceIO(StreamTransport.acceptTCP(portNumber));
       } catch (IOException e) {
          System.err.println("There was an I/O exception when connecting to the client");
          e.printStackTrace();
          System.exit(1);
       }
 
-      XorKey xorKey = generateXorKey(out, in);
-      handleRTTWithTCPMessages(out, in, xorKey, sampleSize);
-      handleThroughputForTCPMessageTests(out, in, xorKey, sampleSize);
-      closeTCPResources(serverSocket, client, out, in);
+      XorKey xorKey = generateXorKey(tcpTransport);
+      SessionOptions sessionOptions = receiveSessionOptions(tcpTransport);
+      MessageCipher cipher = createCipher(xorKey, sessionOptions);
+      handleStreamTests(tcpTransport, cipher, sessionOptions, sampleSize);
+      closeTransport(tcpTransport);
 
-      DatagramChannel datagramChannel = null;
+      DatagramTransport udpTransport = null;
       try {
-         datagramChannel = DatagramChannel.open();
-         InetSocketAddress addr = new InetSocketAddress(portNumber);
-         datagramChannel.bind(addr);
+         udpTransport = DatagramTransport.bind(portNumber);
+         // A test ends once no request arrived for this long, it has to be longer than the timeout of the client
+         udpTransport.setReceiveTimeout(Long.parseLong(System.getProperty("udpIdleTimeout", "5000")));
       } catch (IOException e) {
          System.err.println("There was an I/O Exception thrown when trying to open a datagram channel.");
          e.printStackTrace();
          System.exit(1);
       }
 
-      handleRTTWithUDPMessages(datagramChannel, xorKey, sampleSize);
-      handleThroughputForUDPTests(datagramChannel, xorKey, sampleSize);
+      handleRTTWithUDPMessages(udpTransport, cipher, sampleSize, sessionOptions.isTimestampEcho());
+      handleThroughputForUDPTests(udpTransport, cipher, sampleSize, sessionOptions.createCodec());
+      closeTransport(udpTransport);
+      reportPauses();
+   }
 
-      try {
-         datagramChannel.close();
-      } catch (IOException e) {
-         System.err.println("There was an I/O Exception thrown when trying to close the datagram channel");
-         e.printStackTrace();
-         System.exit(1);
+   /**
+    * Enables read and write coalescing on a stream transport unless it was turned off with -DcoalesceIO=false, which
+    * keeps one read per received message and one write per reply to compare against.
+    * @param transport The accepted stream transport.
+    * @return The transport.
+    */
+   public static Transport coalesceIO(StreamTransport transport) {
+      if (Boolean.parseBoolean(System.getProperty("coalesceIO", "true"))) transport.enableCoalescing(COALESCING_BUFFER_BYTES);
+      return transport;
+   }
+
+   /**
+    * Prints the socket calls per message since the last report of a stream transport. Other transports are skipped.
+    * @param testName The name of the test the calls belong to.
+    * @param transport The transport the test ran over.
+    */
+   public static void reportIoCounters(String testName, Transport transport) {
+      if (!(transport instanceof StreamTransport)) return;
+      IoCounters ioCounters = ((StreamTransport) transport).getIoCounters();
+      System.out.println("I/O during " + testName + ": " + ioCounters);
+      ioCounters.reset();
+   }
+
+   /**
+    * Remembers the window of a test so the pauses during it can be reported once the client is done.
+    * @param testName The name of the test.
+    * @param testStart The System.nanoTime value the test started at.
+    */
+   public static void recordTestWindow(String testName, long testStart) {
+      if (!pauseMonitor.isEnabled()) return;
+      testNames.add(testName);
+      testWindows.add(new long[] {testStart, System.nanoTime()});
+   }
+
+   /**
+    * Prints the GC and safepoint pauses during every test. This waits for the JFR events to be delivered, which is
+    * why it only happens after the last test instead of delaying the first message of the next test.
+    */
+   public static void reportPauses() {
+      if (!pauseMonitor.isEnabled()) return;
+      pauseMonitor.awaitEvents(System.nanoTime());
+      for (int i = 0; i < testNames.size(); i++) {
+         long[] window = testWindows.get(i);
+         System.out.println("Pauses during " + testNames.get(i) + ": " + pauseMonitor.describeWindow(window[0], window[1]));
       }
+      pauseMonitor.close();
+   }
+
+   /**
+    * Generates the xor key and receives the session options over a stream transport, then handles the stream tests.
+    * @param transport The stream transport connected to the client.
+    * @param sampleSize The number of samples the client collects for each test.
+    */
+   public static void serveStreamClient(Transport transport, int sampleSize) {
+      XorKey xorKey = generateXorKey(transport);
+      SessionOptions sessionOptions = receiveSessionOptions(transport);
+      handleStreamTests(transport, createCipher(xorKey, sessionOptions), sessionOptions, sampleSize);
    }
 
-   public static void closeTCPResources(ServerSocket serverSocket, Socket client, DataOutputStream out, DataInputStream in) {
-      try {   
-         out.close();
-         in.close();
-         client.close();
-         serverSocket.close();
+   /**
+    * Handles the RTT and throughput tests that were written for TCP, followed by the workload run if the client asked
+    * for one.
+    * @param transport The stream transport connected to the client.
+    * @param cipher The cipher used to encrypt and decrypt messages.
+    * @param sessionOptions The options the client asked for.
+    * @param sampleSize The number of samples the client collects for each test.
+    */
+   public static void handleStreamTests(Transport transport, MessageCipher cipher, SessionOptions sessionOptions, int sampleSize) {
+      reportIoCounters("the handshake", transport);
+      handleRTTWithTCPMessages(transport, cipher, sampleSize, sessionOptions.isTimestampEcho());
+      handleThroughputForTCPMessageTests(transport, cipher, sampleSize, sessionOptions.createCodec());
+      if (sessionOptions.isWorkload()) handleWorkload(transport, cipher);
+   }
+
+   /**
+    * Creates the cipher the client asked for, keyed from the xor key of the handshake.
+    * @param xorKey The key generated by the handshake.
+    * @param sessionOptions The options the client asked for.
+    * @return The cipher used for every message of the session.
+    */
+   public static MessageCipher createCipher(XorKey xorKey, SessionOptions sessionOptions) {
+      MessageCipher cipher = sessionOptions.createCipher(xorKey, false);
+      System.out.println("Encrypting messages with " + cipher.getName());
+      return cipher;
+   }
+
+   public static void closeTransport(Transport transport) {
+      try {
+         transport.close();
       } catch (IOException e) {
-         System.err.println("There was an I/O Exception thrown when try to close one of the resources");
+         System.err.println("There was an I/O Exception thrown when trying to close the " + transport.getName() + " transport");
          e.printStackTrace();
          System.exit(1);
       }
    }
 
-   public static XorKey generateXorKey(DataOutputStream out, DataInputStream in) {
+   public static XorKey generateXorKey(Transport transport) {
       Random random = new Random();
+      ByteBuffer handshakeBuffer = ByteBuffer.allocate(Long.BYTES);
       try {
-         long seed = in.readLong();
-         out.writeLong(seed);
-         out.flush();
-         int numIterations = in.readInt();
-         out.writeInt(numIterations);
-         out.flush();
+         transport.receive(handshakeBuffer);
+         long seed = handshakeBuffer.getLong(0);
+         handshakeBuffer.flip();
+         transport.send(handshakeBuffer);
+         handshakeBuffer.clear().limit(Integer.BYTES);
+         transport.receive(handshakeBuffer);
+         int numIterations = handshakeBuffer.getInt(0);
+         handshakeBuffer.flip();
+         transport.send(handshakeBuffer);
          random.setSeed(seed);
          for (int i = 0; i < numIterations; i++) {
             random.nextLong();
@@ -111,6 +211,19 @@ public class Server {
       return new XorKey(random.nextLong());
    }
 
+   public static SessionOptions receiveSessionOptions(Transport transport) {
+      SessionOptions sessionOptions = null;
+      try {
+         sessionOptions = SessionOptions.receive(transport);
+         System.out.println("Session options: " + sessionOptions);
+      } catch (IOException e) {
+         System.err.println("There was an I/O Exception thrown when receiving the session options");
+         e.printStackTrace();
+         System.exit(1);
+      }
+      return sessionOptions;
+   }
+
    // Updates the rng of the key for each step
    public static long xorShift(long key) {
       key ^= key << 13;
@@ -126,41 +239,66 @@ public class Server {
       }
    }
 
-   public static void handleRTTWithTCPMessages(DataOutputStream out, DataInputStream in, XorKey xorKey, int sampleSize) {
+   public static void handleRTTWithTCPMessages(Transport transport, MessageCipher cipher, int sampleSize, boolean timestampEcho) {
       int message1Size = 8;
       System.out.println("Handling RTT TCP message of size " + message1Size + "Bytes");
-      handleRTTWithTCPMessage(message1Size, out, in, xorKey, sampleSize);
+      handleRTTWithTCPMessage(message1Size, transport, cipher, sampleSize, timestampEcho);
       int message2Size = 64;
       System.out.println("Handling RTT TCP message of size " + message2Size + "Bytes");
-      handleRTTWithTCPMessage(message2Size, out, in, xorKey, sampleSize);
+      handleRTTWithTCPMessage(message2Size, transport, cipher, sampleSize, timestampEcho);
       int message3Size = 512;
       System.out.println("Handling RTT TCP message of size " + message3Size + "Bytes");
-      handleRTTWithTCPMessage(message3Size, out, in, xorKey, sampleSize);
+      handleRTTWithTCPMessage(message3Size, transport, cipher, sampleSize, timestampEcho);
    }
 
-   public static void handleRTTWithTCPMessage(int messageSize, DataOutputStream out, DataInputStream in, XorKey xorKey, int sampleSize) {
+   /**
+    * Echoes the RTT messages of the client. With timestamp echo the System.nanoTime values at which the message was
+    * received and the reply was sent are appended to the reply, so the client can tell server time from network time.
+    * @param messageSize The size of the messages in bytes.
+    * @param transport The transport connected to the client.
+    * @param cipher The cipher used to decrypt and encrypt the messages.
+    * @param sampleSize The number of messages to echo.
+    * @param timestampEcho Whether the timestamps are appended to every reply.
+    */
+   public static void handleRTTWithTCPMessage(int messageSize, Transport transport, MessageCipher cipher, int sampleSize, boolean timestampEcho) {
       long[] expectedMessage = generateMessage(messageSize);
+      int payloadBytes = expectedMessage.length * Long.BYTES;
+      int encryptedBytes = payloadBytes + cipher.overhead();
+      int trailerBytes = timestampEcho ? 2 * Long.BYTES : 0;
+      ByteBuffer byteBuffer = ByteBuffer.allocateDirect(encryptedBytes + trailerBytes);
+      long testStart = System.nanoTime();
       for (int sampleNum = 1; sampleNum <= sampleSize; sampleNum++) {
          try {
+            byteBuffer.clear().limit(encryptedBytes);
+            transport.receive(byteBuffer);
+            long receiveTime = System.nanoTime();
+            byteBuffer.flip();
             long[] message = new long[expectedMessage.length];
-            for (int i = 0; i < expectedMessage.length; i++) {
-               message[i] = in.readLong();
-            }
             // decode message
-            xorKey.xorWithKey(message);
+            cipher.decrypt(byteBuffer);
+            byteBuffer.asLongBuffer().get(message);
             boolean validMessage = validateMessage(message, expectedMessage);
             if (!validMessage) System.out.println(validMessage);
             // encode message
-            xorKey.xorWithKey(message);
-            ByteBuffer byteBuffer = ByteBuffer.allocate(expectedMessage.length * Long.BYTES);
+            byteBuffer.clear();
             byteBuffer.asLongBuffer().put(message);
-            out.write(byteBuffer.array());
+            byteBuffer.limit(payloadBytes);
+            cipher.encrypt(byteBuffer);
+            byteBuffer.limit(encryptedBytes + trailerBytes);
+            if (timestampEcho) {
+               byteBuffer.putLong(encryptedBytes, receiveTime);
+               byteBuffer.putLong(encryptedBytes + Long.BYTES, System.nanoTime());
+            }
+            transport.send(byteBuffer);
          } catch (IOException e) {
             System.err.println("There was an I/O exception thrown during a RTT tcp message");
             e.printStackTrace();
             System.exit(1);
          }
       }
+      String testName = transport.getName() + " RTT of " + messageSize + " Bytes";
+      recordTestWindow(testName, testStart);
+      reportIoCounters(testName, transport);
    }
 
    public static boolean validateMessage(long[] message, long[] expectedMessage) {
@@ -191,24 +329,45 @@ public class Server {
       return message;
    }
 
-   public static void handleThroughputForTCPMessages(int numMessages, int messageSize, DataOutputStream out, DataInputStream in, XorKey xorKey, int sampleSize) {
+   /**
+    * Receives, validates and acknowledges the messages of a throughput test.
+    * @param numMessages The number of messages in each sample.
+    * @param messageSize The size of each message in bytes before it is compressed.
+    * @param transport The stream transport connected to the client.
+    * @param cipher The cipher used to decrypt the messages.
+    * @param sampleSize The number of samples the client collects.
+    * @param codec The codec the client compresses messages with, null if they are not compressed.
+    */
+   public static void handleThroughputForTCPMessages(int numMessages, int messageSize, Transport transport, MessageCipher cipher, int sampleSize, PayloadCodec codec) {
       long okayStatusCode = 200;
       int numLongs = messageSize / Long.BYTES;
+      ByteBuffer byteBuffer = ByteBuffer.allocateDirect(messageSize + cipher.overhead());
+      ByteBuffer ackBuffer = ByteBuffer.allocate(Long.BYTES);
+      CompressionStage compressionStage = codec == null ? null : new CompressionStage(codec, messageSize, cipher);
+      long testStart = System.nanoTime();
       for (int sampleNum = 1; sampleNum <= sampleSize; sampleNum++) {
          try {
             for (int messageNum = 1; messageNum <= numMessages; messageNum++) {
                long[] message = new long[numLongs];
-               for (int i = 0; i < numLongs; i++) {
-                  message[i] = in.readLong();
+               if (compressionStage != null) {
+                  // decode and decompress message
+                  compressionStage.receiveStream(transport);
+                  compressionStage.decode(message);
+               } else {
+                  byteBuffer.clear();
+                  transport.receive(byteBuffer);
+                  byteBuffer.flip();
+                  // decode message
+                  cipher.decrypt(byteBuffer);
+                  byteBuffer.asLongBuffer().get(message);
                }
-               // decode message
-               xorKey.xorWithKey(message);
                int startIndex = (messageNum - 1) * numLongs;
                boolean validMessage = validateMessageWithGeneratedTriangularNumbers(message, startIndex);
                if (!validMessage) System.out.println(validMessage);
                // send acknowledgment
-               out.writeLong(okayStatusCode);
-               out.flush();
+               ackBuffer.clear();
+               ackBuffer.putLong(okayStatusCode).flip();
+               transport.send(ackBuffer);
             }
          } catch (IOException e) {
             System.err.println("There was an I/O exception thrown when handling throughput tcps messages.");
@@ -216,115 +375,209 @@ public class Server {
             System.exit(1);
          }
       }
+      String testName = transport.getName() + " throughput of " + numMessages + "x" + messageSize + "B";
+      recordTestWindow(testName, testStart);
+      reportIoCounters(testName, transport);
    }
 
-   public static void handleThroughputForTCPMessageTests(DataOutputStream out, DataInputStream in, XorKey xorKey, int sampleSize) {
+   public static void handleThroughputForTCPMessageTests(Transport transport, MessageCipher cipher, int sampleSize, PayloadCodec codec) {
       int numMessagesForTest1 = 16384;
       int messageSizeForTest1 = 64;
       System.out.println("Handling Throughput for TCP with " + numMessagesForTest1 + " messages of " + messageSizeForTest1 + " bytes.");
-      handleThroughputForTCPMessages(numMessagesForTest1, messageSizeForTest1, out, in, xorKey, sampleSize);
+      handleThroughputForTCPMessages(numMessagesForTest1, messageSizeForTest1, transport, cipher, sampleSize, codec);
 
       int numMessagesForTest2 = 4096;
       int messageSizeForTest2 = 256;
       System.out.println("Handling Throughput for TCP with " + numMessagesForTest2 + " messages of " + messageSizeForTest2 + " bytes.");
-      handleThroughputForTCPMessages(numMessagesForTest2, messageSizeForTest2, out, in, xorKey, sampleSize);
+      handleThroughputForTCPMessages(numMessagesForTest2, messageSizeForTest2, transport, cipher, sampleSize, codec);
 
       int numMessagesForTest3 = 1024;
       int messageSizeForTest3 = 1024;
       System.out.println("Handling Throughput for TCP with " + numMessagesForTest3 + " messages of " + messageSizeForTest3 + " bytes.");
-      handleThroughputForTCPMessages(numMessagesForTest3, messageSizeForTest3, out, in, xorKey, sampleSize);
+      handleThroughputForTCPMessages(numMessagesForTest3, messageSizeForTest3, transport, cipher, sampleSize, codec);
    }
 
-   public static void handleRTTWithUDPMessage(int messageSize, DatagramChannel datagramChannel, XorKey xorKey, int sampleSize) {
+   /**
+    * Answers the requests of a workload run until the client ends it. The first header carries the size of the largest
+    * message, every following header the size of the request behind it and of the response the client wants. The
+    * requests are validated and answered with a response of the requested size.
+    * @param transport The stream transport connected to the client.
+    * @param cipher The cipher used to decrypt the requests and encrypt the responses.
+    */
+   public static void handleWorkload(Transport transport, MessageCipher cipher) {
+      System.out.println("Handling workload requests");
+      ByteBuffer headerBuffer = ByteBuffer.allocateDirect(WorkloadPayload.HEADER_BYTES);
+      int numRequests = 0;
+      int numInvalid = 0;
+      long testStart = System.nanoTime();
+      try {
+         transport.receive(headerBuffer);
+         int maxBytes = headerBuffer.getInt(0);
+         WorkloadPayload payload = new WorkloadPayload(maxBytes);
+         ByteBuffer byteBuffer = ByteBuffer.allocateDirect(maxBytes + cipher.overhead());
+         while (true) {
+            headerBuffer.clear();
+            transport.receive(headerBuffer);
+            int requestBytes = headerBuffer.getInt(0);
+            if (requestBytes == 0) break;
+            int responseBytes = headerBuffer.getInt(Integer.BYTES);
+            if (requestBytes > maxBytes || responseBytes > maxBytes) {
+               throw new IOException("A workload message is larger than the " + maxBytes + " bytes announced by the client");
+            }
+            // decode request
+            byteBuffer.clear().limit(requestBytes + cipher.overhead());
+            transport.receive(byteBuffer);
+            byteBuffer.flip();
+            cipher.decrypt(byteBuffer);
+            if (!payload.matches(byteBuffer, 0, requestBytes)) numInvalid++;
+            // encode response
+            byteBuffer.clear().limit(responseBytes);
+            payload.fill(byteBuffer, 0, responseBytes);
+            cipher.encrypt(byteBuffer);
+            transport.send(byteBuffer);
+            numRequests++;
+         }
+      } catch (IOException e) {
+         System.err.println("There was an I/O exception thrown when handling workload requests.");
+         e.printStackTrace();
+         System.exit(1);
+      }
+      System.out.println("Answered " + numRequests + " workload requests, " + numInvalid + " of them invalid");
+      String testName = transport.getName() + " workload";
+      recordTestWindow(testName, testStart);
+      reportIoCounters(testName, transport);
+   }
+
+   public static void handleRTTWithUDPMessage(int messageSize, DatagramTransport transport, MessageCipher cipher, int sampleSize, boolean timestampEcho) {
       long[] expectedMessage = generateMessage(messageSize);
-      ByteBuffer byteBuffer = ByteBuffer.allocate(messageSize);
-      for (int sample = 1; sample <= sampleSize; sample++) {
-         try {
+      int encryptedBytes = messageSize + cipher.overhead();
+      int trailerBytes = timestampEcho ? 2 * Long.BYTES : 0;
+      ByteBuffer byteBuffer = ByteBuffer.allocateDirect(encryptedBytes + trailerBytes);
+      long testStart = System.nanoTime();
+      transport.beginTest(sampleSize);
+      try {
+         while (true) {
             long[] receivedMessage = new long[expectedMessage.length];
-            SocketAddress clientAddr = datagramChannel.receive(byteBuffer);
-            byteBuffer.rewind();
-            byteBuffer.asLongBuffer().get(receivedMessage);
-            byteBuffer.rewind();
+            byteBuffer.clear().limit(encryptedBytes);
+            if (transport.receive(byteBuffer) < 0) break;
+            long receiveTime = System.nanoTime();
+            byteBuffer.flip();
             // decode
-            xorKey.xorWithKey(receivedMessage);
+            cipher.beginDatagram(transport.getSequence());
+            cipher.decrypt(byteBuffer);
+            byteBuffer.asLongBuffer().get(receivedMessage);
             boolean validMessage = validateMessage(receivedMessage, expectedMessage);
             if (!validMessage) System.out.println("validation error in RTT UDP.");
             // encode message
-            xorKey.xorWithKey(receivedMessage);
+            byteBuffer.clear();
             byteBuffer.asLongBuffer().put(receivedMessage);
-            byteBuffer.rewind();
-            datagramChannel.send(byteBuffer, clientAddr);
-            // Setup bytebuffer for next message
-            byteBuffer.rewind();
-         } catch (IOException e) {
-            System.err.println("There was an I/O Exception thrown when handling RTT with UDP messages.");
-            e.printStackTrace();
-            System.exit(1);
+            byteBuffer.limit(messageSize);
+            cipher.beginDatagram(transport.getSequence());
+            cipher.encrypt(byteBuffer);
+            byteBuffer.limit(encryptedBytes + trailerBytes);
+            if (timestampEcho) {
+               byteBuffer.putLong(encryptedBytes, receiveTime);
+               byteBuffer.putLong(encryptedBytes + Long.BYTES, System.nanoTime());
+            }
+            transport.send(byteBuffer);
          }
+      } catch (IOException e) {
+         System.err.println("There was an I/O Exception thrown when handling RTT with UDP messages.");
+         e.printStackTrace();
+         System.exit(1);
       }
+      String testName = transport.getName() + " RTT of " + messageSize + " Bytes";
+      recordTestWindow(testName, testStart);
+      reportDatagramLoss(testName, transport, sampleSize);
    }
 
-   public static void handleRTTWithUDPMessages(DatagramChannel datagramChannel, XorKey xorKey, int sampleSize) {
+   public static void handleRTTWithUDPMessages(DatagramTransport transport, MessageCipher cipher, int sampleSize, boolean timestampEcho) {
       int messageSizeForTest1 = 8;
       System.out.println("Handling RTT UDP message of size " + messageSizeForTest1 + "Bytes");
-      handleRTTWithUDPMessage(messageSizeForTest1, datagramChannel, xorKey, sampleSize);
+      handleRTTWithUDPMessage(messageSizeForTest1, transport, cipher, sampleSize, timestampEcho);
 
       int messageSizeForTest2 = 64;
       System.out.println("Handling RTT UDP message of size " + messageSizeForTest2 + "Bytes");
-      handleRTTWithUDPMessage(messageSizeForTest2, datagramChannel, xorKey, sampleSize);
+      handleRTTWithUDPMessage(messageSizeForTest2, transport, cipher, sampleSize, timestampEcho);
 
       int messageSizeForTest3 = 512;
       System.out.println("Handling RTT UDP message of size " + messageSizeForTest3 + "Bytes");
-      handleRTTWithUDPMessage(messageSizeForTest3, datagramChannel, xorKey, sampleSize);
+      handleRTTWithUDPMessage(messageSizeForTest3, transport, cipher, sampleSize, timestampEcho);
    }
 
-   public static void handleThroughputUDPMessages(int numMessages, int messageSize, DatagramChannel datagramChannel, XorKey xorKey, int sampleSize) {
+   public static void handleThroughputUDPMessages(int numMessages, int messageSize, DatagramTransport transport, MessageCipher cipher, int sampleSize, PayloadCodec codec) {
       long okayStatusCode = 200;
       int numLongs = messageSize / Long.BYTES;
-      ByteBuffer byteBuffer = ByteBuffer.allocate(messageSize);
-      for (int sampleNum = 1; sampleNum <= sampleSize; sampleNum++) {
-         try {
-            for (int messageNum = 1; messageNum <= numMessages; messageNum++) {
-               long[] message = new long[numLongs];
-               SocketAddress clientAddr = datagramChannel.receive(byteBuffer);
-               byteBuffer.rewind();
-               byteBuffer.asLongBuffer().get(message);
+      ByteBuffer byteBuffer = ByteBuffer.allocateDirect(messageSize + cipher.overhead());
+      CompressionStage compressionStage = codec == null ? null : new CompressionStage(codec, messageSize, cipher);
+      long testStart = System.nanoTime();
+      transport.beginTest((long) sampleSize * numMessages);
+      try {
+         while (true) {
+            long[] message = new long[numLongs];
+            if (compressionStage != null) {
+               // decode and decompress message
+               if (!compressionStage.receiveDatagram(transport)) break;
+               cipher.beginDatagram(transport.getSequence());
+               compressionStage.decode(message);
+            } else {
+               if (transport.receive(byteBuffer) < 0) break;
+               byteBuffer.flip();
                // decode message
-               xorKey.xorWithKey(message);
-               int startIndex = (messageNum - 1) * numLongs;
-               boolean validMessage = validateMessageWithGeneratedTriangularNumbers(message, startIndex);
-               if (!validMessage) System.out.println("Non-valid message for UDP throughput measurement.");
-               // send acknowledgment
-               byteBuffer.rewind();
-               byteBuffer.putLong(okayStatusCode);
-               byteBuffer.rewind();
-               byteBuffer.limit(Long.BYTES);
-               datagramChannel.send(byteBuffer, clientAddr);
-               // clear limit from Bytebuffer and reset position
-               byteBuffer.clear();
+               cipher.beginDatagram(transport.getSequence());
+               cipher.decrypt(byteBuffer);
+               byteBuffer.asLongBuffer().get(message);
             }
-         } catch (IOException e) {
-            System.err.println("There was an I/O exception thrown when handling throughput udp messages.");
-            e.printStackTrace();
-            System.exit(1);
+            // The position in the test tells which message of a sample this is, even if earlier ones were lost
+            int startIndex = (int) (transport.getTestPosition() % numMessages) * numLongs;
+            boolean validMessage = validateMessageWithGeneratedTriangularNumbers(message, startIndex);
+            if (!validMessage) System.out.println("Non-valid message for UDP throughput measurement.");
+            // send acknowledgment
+            byteBuffer.rewind();
+            byteBuffer.putLong(okayStatusCode);
+            byteBuffer.rewind();
+            byteBuffer.limit(Long.BYTES);
+            transport.send(byteBuffer);
+            // clear limit from Bytebuffer and reset position
+            byteBuffer.clear();
          }
+      } catch (IOException e) {
+         System.err.println("There was an I/O exception thrown when handling throughput udp messages.");
+         e.printStackTrace();
+         System.exit(1);
       }
+      String testName = transport.getName() + " throughput of " + numMessages + "x" + messageSize + "B";
+      recordTestWindow(testName, testStart);
+      reportDatagramLoss(testName, transport, (long) sampleSize * numMessages);
+   }
+
+   /**
+    * Prints how many requests of a datagram test never arrived and how many late or duplicate ones were dropped, then
+    * resets the counters for the next test.
+    * @param testName The name of the test.
+    * @param transport The datagram transport the test ran over.
+    * @param numRequests The number of requests the client sent in the test.
+    */
+   public static void reportDatagramLoss(String testName, DatagramTransport transport, long numRequests) {
+      System.out.println("Datagrams during " + testName + ": " + transport.getNumLost() + " of " + numRequests
+            + " requests lost, " + transport.getNumDropped() + " late or duplicate datagrams dropped");
+      transport.resetLossCounters();
    }
 
-   public static void handleThroughputForUDPTests(DatagramChannel datagramChannel, XorKey xorKey, int sampleSize) {
+   public static void handleThroughputForUDPTests(DatagramTransport transport, MessageCipher cipher, int sampleSize, PayloadCodec codec) {
       int numMessagesForTest1 = 16384;
       int messageSizeForTest1 = 64;
       System.out.println("Handling Throughput for UDP with " + numMessagesForTest1 + " messages of " + messageSizeForTest1 + " bytes.");
-      handleThroughputUDPMessages(numMessagesForTest1, messageSizeForTest1, datagramChannel, xorKey, sampleSize);
+      handleThroughputUDPMessages(numMessagesForTest1, messageSizeForTest1, transport, cipher, sampleSize, codec);
 
       int numMessagesForTest2 = 4096;
       int messageSizeForTest2 = 256;
       System.out.println("Handling Throughput for UDP with " + numMessagesForTest2 + " messages of " + messageSizeForTest2 + " bytes.");
-      handleThroughputUDPMessages(numMessagesForTest2, messageSizeForTest2, datagramChannel, xorKey, sampleSize);
+      handleThroughputUDPMessages(numMessagesForTest2, messageSizeForTest2, transport, cipher, sampleSize, codec);
 
       int numMessagesForTest3 = 1024;
       int messageSizeForTest3 = 1024;
       System.out.println("Handling Throughput for UDP with " + numMessagesForTest3 + " messages of " + messageSizeForTest3 + " bytes.");
-      handleThroughputUDPMessages(numMessagesForTest3, messageSizeForTest3, datagramChannel, xorKey, sampleSize);
+      handleThroughputUDPMessages(numMessagesForTest3, messageSizeForTest3, transport, cipher, sampleSize, codec);
    }
 }
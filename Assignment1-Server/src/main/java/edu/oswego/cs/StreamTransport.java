@@ -0,0 +1,211 @@
+package edu.oswego.cs;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnknownHostException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A transport over a blocking stream socket channel. Works for both TCP and Unix domain sockets.
+ * <p>
+ * By default every message is read and written with its own socket calls. With coalescing enabled, reads fill a large
+ * buffer with everything that has arrived and messages are taken from it without further calls, and sends are held
+ * back while more of the read messages are waiting, so the replies to one batch of reads go out in one write.
+ */
+public class StreamTransport implements Transport {
+
+   private final SocketChannel socketChannel;
+
+   private final String name;
+
+   private boolean recordFirstByte;
+
+   private long firstByteNanoTime;
+
+   private long lastReadNanoTime;
+
+   private final IoCounters ioCounters = new IoCounters();
+
+   // Unread bytes between position and limit, null unless coalescing is enabled
+   private ByteBuffer readBuffer;
+
+   // Unsent bytes before the position, null unless coalescing is enabled
+   private ByteBuffer writeBuffer;
+
+   public StreamTransport(SocketChannel socketChannel, String name) {
+      this.socketChannel = socketChannel;
+      this.name = name;
+   }
+
+   public static StreamTransport connectTCP(String host, int portNumber) throws IOException {
+      InetSocketAddress address = new InetSocketAddress(host, portNumber);
+      if (address.isUnresolved()) throw new UnknownHostException(host);
+      SocketChannel socketChannel = SocketChannel.open(address);
+      return new StreamTransport(socketChannel, "TCP");
+   }
+
+   public static StreamTransport connectUnix(int portNumber) throws IOException {
+      SocketChannel socketChannel = SocketChannel.open(unixAddressForPort(portNumber));
+      return new StreamTransport(socketChannel, "UNIX");
+   }
+
+   /**
+    * Waits for a single TCP connection on the specified port. The listening channel is closed once the client connected.
+    * @param portNumber The port to listen on.
+    * @return The transport for the accepted connection.
+    * @throws IOException If the port could not be bound or the connection could not be accepted.
+    */
+   public static StreamTransport acceptTCP(int portNumber) throws IOException {
+      try (ServerSocketChannel serverSocketChannel = ServerSocketChannel.open()) {
+         serverSocketChannel.bind(new InetSocketAddress(portNumber));
+         return new StreamTransport(serverSocketChannel.accept(), "TCP");
+      }
+   }
+
+   /**
+    * Waits for a single Unix domain socket connection on the socket file that belongs to the specified port. The socket
+    * file is removed again once the client connected.
+    * @param portNumber The port the socket file is named after.
+    * @return The transport for the accepted connection.
+    * @throws IOException If the socket file could not be bound or the connection could not be accepted.
+    */
+   public static StreamTransport acceptUnix(int portNumber) throws IOException {
+      UnixDomainSocketAddress address = unixAddressForPort(portNumber);
+      Files.deleteIfExists(address.getPath());
+      try (ServerSocketChannel serverSocketChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+         serverSocketChannel.bind(address);
+         return new StreamTransport(serverSocketChannel.accept(), "UNIX");
+      } finally {
+         Files.deleteIfExists(address.getPath());
+      }
+   }
+
+   /**
+    * The client and server agree on the socket file through the port number so no extra argument is needed.
+    * @param portNumber The port number used for the tests.
+    * @return The address of the socket file in the temporary directory.
+    */
+   public static UnixDomainSocketAddress unixAddressForPort(int portNumber) {
+      Path path = Path.of(System.getProperty("java.io.tmpdir"), "assignment1-" + portNumber + ".sock");
+      return UnixDomainSocketAddress.of(path);
+   }
+
+   /**
+    * Buffers reads and writes from now on. Sent messages are held back while the read buffer still holds bytes of
+    * further messages and written once it is drained, so a reply to the last message read is never delayed.
+    * @param bufferBytes The size of the read and write buffers.
+    */
+   public void enableCoalescing(int bufferBytes) {
+      readBuffer = ByteBuffer.allocateDirect(bufferBytes).flip();
+      writeBuffer = ByteBuffer.allocateDirect(bufferBytes);
+   }
+
+   public IoCounters getIoCounters() {
+      return ioCounters;
+   }
+
+   @Override
+   public void send(ByteBuffer buffer) throws IOException {
+      ioCounters.countSend();
+      if (writeBuffer == null) {
+         writeFully(buffer);
+         return;
+      }
+      if (buffer.remaining() > writeBuffer.remaining()) flush();
+      if (buffer.remaining() > writeBuffer.capacity()) {
+         writeFully(buffer);
+      } else {
+         writeBuffer.put(buffer);
+      }
+      // Nothing else was pipelined, so this ends the batch and the peer may be waiting for it
+      if (!readBuffer.hasRemaining()) flush();
+   }
+
+   /**
+    * Writes the messages held back by coalescing.
+    * @throws IOException If the messages could not be written.
+    */
+   public void flush() throws IOException {
+      if (writeBuffer == null || writeBuffer.position() == 0) return;
+      writeBuffer.flip();
+      writeFully(writeBuffer);
+      writeBuffer.clear();
+   }
+
+   @Override
+   public int receive(ByteBuffer buffer) throws IOException {
+      ioCounters.countReceive();
+      int numBytes = 0;
+      while (buffer.hasRemaining()) {
+         if (readBuffer == null || (!readBuffer.hasRemaining() && buffer.remaining() >= readBuffer.capacity())) {
+            // Unbuffered, or a large message that would not save any calls by being copied
+            flush();
+            int bytesRead = read(buffer);
+            if (numBytes == 0 && recordFirstByte) firstByteNanoTime = lastReadNanoTime;
+            numBytes += bytesRead;
+            continue;
+         }
+         if (!readBuffer.hasRemaining()) {
+            // About to wait for the peer, which first has to see the replies held back so far
+            flush();
+            readBuffer.clear();
+            read(readBuffer);
+            readBuffer.flip();
+         }
+         // The first bytes of the message arrived with the read that buffered them
+         if (numBytes == 0 && recordFirstByte) firstByteNanoTime = lastReadNanoTime;
+         int numCopied = Math.min(buffer.remaining(), readBuffer.remaining());
+         int readLimit = readBuffer.limit();
+         buffer.put(readBuffer.limit(readBuffer.position() + numCopied));
+         readBuffer.limit(readLimit);
+         numBytes += numCopied;
+      }
+      return numBytes;
+   }
+
+   @Override
+   public void setFirstByteTimestamps(boolean enabled) {
+      recordFirstByte = enabled;
+   }
+
+   @Override
+   public long getFirstByteNanoTime() {
+      return firstByteNanoTime;
+   }
+
+   @Override
+   public String getName() {
+      return name;
+   }
+
+   @Override
+   public void close() throws IOException {
+      try {
+         flush();
+      } finally {
+         socketChannel.close();
+      }
+   }
+
+   private int read(ByteBuffer buffer) throws IOException {
+      int bytesRead = socketChannel.read(buffer);
+      ioCounters.countReadCall();
+      if (bytesRead < 0) throw new EOFException("The peer closed the " + name + " connection");
+      if (recordFirstByte) lastReadNanoTime = System.nanoTime();
+      return bytesRead;
+   }
+
+   private void writeFully(ByteBuffer buffer) throws IOException {
+      while (buffer.hasRemaining()) {
+         socketChannel.write(buffer);
+         ioCounters.countWriteCall();
+      }
+   }
+}
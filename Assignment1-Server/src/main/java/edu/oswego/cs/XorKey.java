@@ -1,31 +1,97 @@
 package edu.oswego.cs;
 
-public class XorKey {
-   
+import java.nio.ByteBuffer;
+
+public class XorKey implements MessageCipher {
+
+   private static final int MAX_BYTES_ALLOWED_TO_XOR_WITH_KEY = 64;
+
    private long key;
 
    int numBytesXoredWithCurrentKey;
 
+   // The key when the first datagram began, the key of every datagram is derived from it
+   private long datagramBaseKey;
+
+   private boolean datagramKeysStarted;
+
    public XorKey(long key) {
       this.key = key;
       numBytesXoredWithCurrentKey = 0;
    }
 
    public void xorWithKeyAndBounds(long[] data, int lowerBound, int upperBound) {
-      int maxBytesAllowedToXorWithKey = 64;
       for (int i = lowerBound; i < upperBound; i++) {
          data[i] ^= key;
-         numBytesXoredWithCurrentKey += Long.BYTES;
-         // Checks if the key needs to be advanced
-         if (numBytesXoredWithCurrentKey >= maxBytesAllowedToXorWithKey) {
-            xorShift();
-            numBytesXoredWithCurrentKey = 0;
-         }
+         countXoredLong();
       }
    }
 
    public void xorWithKey(long[] data) {
-      xorWithKeyAndBounds(data, 0, data.length);      
+      xorWithKeyAndBounds(data, 0, data.length);
+   }
+
+   /**
+    * Xors the whole longs between the position and the limit of the buffer in the same order as xorWithKeyAndBounds,
+    * so both can be mixed on the two sides of a session.
+    */
+   public void xorWithKey(ByteBuffer buffer) {
+      for (int i = buffer.position(); i + Long.BYTES <= buffer.limit(); i += Long.BYTES) {
+         buffer.putLong(i, buffer.getLong(i) ^ key);
+         countXoredLong();
+      }
+   }
+
+   @Override
+   public void encrypt(ByteBuffer buffer) {
+      xorWithKey(buffer);
+   }
+
+   @Override
+   public void decrypt(ByteBuffer buffer) {
+      xorWithKey(buffer);
+   }
+
+   /**
+    * Datagrams can be lost or reordered, so instead of advancing from the previous message the key of a datagram is
+    * derived from its sequence number and the key both sides had when the first datagram began.
+    */
+   @Override
+   public void beginDatagram(long sequence) {
+      if (!datagramKeysStarted) {
+         datagramBaseKey = key;
+         datagramKeysStarted = true;
+      }
+      // Spreads the sequence number over all bits so consecutive datagrams get unrelated keys
+      key = datagramBaseKey ^ (sequence * 0x9E3779B97F4A7C15L);
+      xorShift();
+      numBytesXoredWithCurrentKey = 0;
+   }
+
+   @Override
+   public int overhead() {
+      return 0;
+   }
+
+   @Override
+   public String getName() {
+      return "xor";
+   }
+
+   /**
+    * @return The current key, the other ciphers derive their key from it right after the handshake.
+    */
+   public long getKey() {
+      return key;
+   }
+
+   // Checks if the key needs to be advanced
+   private void countXoredLong() {
+      numBytesXoredWithCurrentKey += Long.BYTES;
+      if (numBytesXoredWithCurrentKey >= MAX_BYTES_ALLOWED_TO_XOR_WITH_KEY) {
+         xorShift();
+         numBytesXoredWithCurrentKey = 0;
+      }
    }
 
    // Updates the rng of the key for each step